@@ -0,0 +1,225 @@
+package in.teramatrix.utilities.model;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact and growable list of coordinates, to hold routes and tracks without creating a {@link LatLng} object for every point.
+ * Latitude and longitude are stored in fixed-point as degrees * 10^7 (E7) in a single {@code int} array, that is 8 bytes per point
+ * against about 32 bytes of a {@link LatLng}. E7 keeps a precision of about one centimeter, which is far better than any GPS fix.
+ * <p>
+ * A single coordinate can also be packed in a primitive {@code long} using {@code pack()}, the same fixed-point representation
+ * when a list is not needed. Convert to {@link LatLng} only at the map boundary, using {@code toLatLng()} or {@code toLatLngList()}.
+ */
+@SuppressWarnings("unused")
+public class CoordinateArray {
+    /**
+     * Scale of fixed-point coordinates
+     */
+    public static final double E7 = 1e7;
+
+    /**
+     * Latitude of point i is at 2 * i and longitude at 2 * i + 1
+     */
+    private int[] coordinates;
+
+    /**
+     * Number of points in the list
+     */
+    private int size;
+
+    public CoordinateArray() {
+        this(16);
+    }
+
+    /**
+     * @param capacity number of points to be held without growing
+     */
+    public CoordinateArray(int capacity) {
+        this.coordinates = new int[Math.max(1, capacity) * 2];
+    }
+
+    /**
+     * @param latLngs points to be copied in a new list
+     * @return list holding the same points
+     */
+    public static CoordinateArray of(List<LatLng> latLngs) {
+        CoordinateArray array = new CoordinateArray(latLngs.size());
+        for (int i = 0; i < latLngs.size(); i++) array.add(latLngs.get(i));
+        return array;
+    }
+
+    /**
+     * @param degrees latitude or longitude
+     * @return fixed-point value rounded to the nearest E7
+     */
+    public static int toE7(double degrees) {
+        return (int) Math.round(degrees * E7);
+    }
+
+    /**
+     * @param e7 fixed-point latitude or longitude
+     * @return value in degrees
+     */
+    public static double fromE7(int e7) {
+        return e7 / E7;
+    }
+
+    /**
+     * @return a single coordinate packed in a long, latitude in high 32 bits and longitude in low 32 bits
+     */
+    public static long pack(int latitudeE7, int longitudeE7) {
+        return ((long) latitudeE7 << 32) | (longitudeE7 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return a single coordinate packed in a long, see {@code pack(int, int)}
+     */
+    public static long pack(double latitude, double longitude) {
+        return pack(toE7(latitude), toE7(longitude));
+    }
+
+    public static int unpackLatitudeE7(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackLongitudeE7(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * @return packed coordinate converted to {@link LatLng} for the map
+     */
+    public static LatLng unpack(long packed) {
+        return new LatLng(fromE7(unpackLatitudeE7(packed)), fromE7(unpackLongitudeE7(packed)));
+    }
+
+    public CoordinateArray add(double latitude, double longitude) {
+        return addE7(toE7(latitude), toE7(longitude));
+    }
+
+    public CoordinateArray add(LatLng latLng) {
+        return add(latLng.latitude, latLng.longitude);
+    }
+
+    public CoordinateArray addE7(int latitudeE7, int longitudeE7) {
+        if (size * 2 == coordinates.length)
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        coordinates[size * 2] = latitudeE7;
+        coordinates[size * 2 + 1] = longitudeE7;
+        size++;
+        return this;
+    }
+
+    /**
+     * @param other list whose points are to be appended to this one
+     * @return current instance of this class
+     */
+    public CoordinateArray addAll(CoordinateArray other) {
+        if ((size + other.size) * 2 > coordinates.length)
+            coordinates = Arrays.copyOf(coordinates, Math.max(coordinates.length * 2, (size + other.size) * 2));
+        System.arraycopy(other.coordinates, 0, coordinates, size * 2, other.size * 2);
+        size += other.size;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int getLatitudeE7(int index) {
+        checkIndex(index);
+        return coordinates[index * 2];
+    }
+
+    public int getLongitudeE7(int index) {
+        checkIndex(index);
+        return coordinates[index * 2 + 1];
+    }
+
+    public double getLatitude(int index) {
+        return fromE7(getLatitudeE7(index));
+    }
+
+    public double getLongitude(int index) {
+        return fromE7(getLongitudeE7(index));
+    }
+
+    /**
+     * @return point at the index packed in a long, see {@code pack(int, int)}
+     */
+    public long get(int index) {
+        return pack(getLatitudeE7(index), getLongitudeE7(index));
+    }
+
+    public void setE7(int index, int latitudeE7, int longitudeE7) {
+        checkIndex(index);
+        coordinates[index * 2] = latitudeE7;
+        coordinates[index * 2 + 1] = longitudeE7;
+    }
+
+    /**
+     * @return point at the index as {@link LatLng}, for the map
+     */
+    public LatLng toLatLng(int index) {
+        return new LatLng(getLatitude(index), getLongitude(index));
+    }
+
+    /**
+     * @return all the points as {@link LatLng}s, for the map
+     */
+    public List<LatLng> toLatLngList() {
+        List<LatLng> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) list.add(toLatLng(i));
+        return list;
+    }
+
+    /**
+     * @return latitudes of all the points in degrees, for the batch methods of {@link in.teramatrix.utilities.util.GUtils}
+     */
+    public double[] getLatitudes() {
+        double[] latitudes = new double[size];
+        for (int i = 0; i < size; i++) latitudes[i] = fromE7(coordinates[i * 2]);
+        return latitudes;
+    }
+
+    /**
+     * @return longitudes of all the points in degrees, for the batch methods of {@link in.teramatrix.utilities.util.GUtils}
+     */
+    public double[] getLongitudes() {
+        double[] longitudes = new double[size];
+        for (int i = 0; i < size; i++) longitudes[i] = fromE7(coordinates[i * 2 + 1]);
+        return longitudes;
+    }
+
+    /**
+     * Frees the unused capacity, useful once a route or track has been completely built.
+     */
+    public void trimToSize() {
+        if (coordinates.length > size * 2)
+            coordinates = Arrays.copyOf(coordinates, Math.max(1, size) * 2);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    @Override
+    public String toString() {
+        return "CoordinateArray{" +
+                "size=" + size +
+                '}';
+    }
+}
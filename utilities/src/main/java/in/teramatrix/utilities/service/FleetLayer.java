@@ -0,0 +1,504 @@
+package in.teramatrix.utilities.service;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayDeque;
+
+import in.teramatrix.utilities.model.CoordinateArray;
+import in.teramatrix.utilities.util.FrameAnimator;
+
+/**
+ * Shows thousands of live vehicles on a {@link GoogleMap}, where a {@link Locator} or a plain marker per vehicle would be too heavy.
+ * State of every vehicle is kept in primitive arrays, looked up by its id through an open addressing hash table, and a map
+ * {@link Marker} exists only for the vehicles inside the viewport. A marker of a vehicle leaving the viewport is hidden and reused
+ * for the next vehicle entering it, so number of markers stays near the number of vehicles on screen whatever the size of the fleet.
+ * <p>
+ * Positions may be updated from any thread, for example straight from a socket. Updates are queued in primitive buffers and
+ * applied all at once on the next frame of {@link FrameAnimator}, so a burst of updates costs a single pass on the main thread.
+ * Viewport is read when the camera stops, so set the layer as camera idle listener or call {@code onCameraIdle()} from yours.
+ * <pre>
+ * FleetLayer fleet = new FleetLayer(map).setIcon(BitmapDescriptorFactory.fromResource(R.drawable.ic_car));
+ * map.setOnCameraIdleListener(fleet);
+ * ...
+ * fleet.update(vehicleId, latitude, longitude, bearing);
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class FleetLayer implements GoogleMap.OnCameraIdleListener {
+    /**
+     * Property of {@link FrameAnimator} used for the batch of updates of this layer
+     */
+    private static final int APPLY = 100;
+
+    /**
+     * Hidden markers kept for reuse, more than these are removed from the map
+     */
+    private static final int MAX_POOL = 64;
+
+    /**
+     * Viewport is grown by this fraction on every side, so a vehicle moving near the edge doesn't keep swapping its marker
+     */
+    private static final double VIEWPORT_MARGIN = 0.1;
+
+    private final GoogleMap map;
+    private BitmapDescriptor icon;
+    private boolean rotation = true;
+    private long moveDuration = 1000;
+
+    /**
+     * State of the vehicles, vehicle i of {@code count}. Marker is null if the vehicle is not in the viewport.
+     */
+    private long[] ids = new long[64];
+    private double[] latitudes = new double[64], longitudes = new double[64];
+    private float[] bearings = new float[64];
+    private Marker[] markers = new Marker[64];
+    private int count;
+
+    /**
+     * Open addressing hash table with linear probing, from id to index + 1 of the vehicle, 0 for an empty slot
+     */
+    private int[] table = new int[128];
+
+    /**
+     * Queued updates, filled by any thread and swapped with the spare buffers on the main thread. Removal is queued as NaN latitude.
+     */
+    private final Object lock = new Object();
+    private Updates pending = new Updates(), spare = new Updates();
+    private boolean scheduled;
+
+    /**
+     * Viewport with margin, east is less than west when it crosses the 180th meridian. No viewport until camera stops for the first time.
+     */
+    private boolean hasViewport;
+    private double south, north, west, east;
+
+    /**
+     * Hidden markers to be reused
+     */
+    private final ArrayDeque<Marker> pool = new ArrayDeque<>();
+
+    private final Handler main = new Handler(Looper.getMainLooper());
+
+    /**
+     * Starts the batch on the next frame, posted to the main thread because {@link FrameAnimator} lives there
+     */
+    private final Runnable schedule = new Runnable() {
+        @Override
+        public void run() {
+            FrameAnimator.getInstance().start(FleetLayer.this, APPLY, apply);
+        }
+    };
+
+    /**
+     * Applies all the queued updates in a single frame
+     */
+    private final FrameAnimator.Animation apply = new FrameAnimator.Animation(0) {
+        @Override
+        protected boolean onFrame(long elapsed) {
+            Updates updates;
+            synchronized (lock) {
+                updates = pending;
+                pending = spare;
+                spare = updates;
+                scheduled = false;
+            }
+            for (int i = 0; i < updates.count; i++)
+                apply(updates.ids[i], updates.latitudes[i], updates.longitudes[i], updates.bearings[i]);
+            updates.count = 0;
+            return false;
+        }
+
+        @Override
+        protected void onUpdate(float fraction) {
+        }
+    };
+
+    /**
+     * @param map on which the vehicles will be shown
+     */
+    public FleetLayer(GoogleMap map) {
+        this.map = map;
+    }
+
+    /**
+     * @param icon marker icon of all the vehicles
+     * @return current instance of this class
+     */
+    public FleetLayer setIcon(BitmapDescriptor icon) {
+        this.icon = icon;
+        return this;
+    }
+
+    /**
+     * @param rotation true to rotate the markers by bearing of the vehicles
+     * @return current instance of this class
+     */
+    public FleetLayer setRotation(boolean rotation) {
+        this.rotation = rotation;
+        return this;
+    }
+
+    /**
+     * @param moveDuration in milliseconds, a visible marker is moved to its new position in this time, 0 to jump at once
+     * @return current instance of this class
+     */
+    public FleetLayer setMoveDuration(long moveDuration) {
+        this.moveDuration = moveDuration;
+        return this;
+    }
+
+    /**
+     * Queues a new position of a vehicle, it is added if it is not known yet. It can be called from any thread.
+     *
+     * @param id        of the vehicle
+     * @param latitude  of the vehicle
+     * @param longitude of the vehicle
+     * @param bearing   of the vehicle in degrees
+     */
+    public void update(long id, double latitude, double longitude, float bearing) {
+        synchronized (lock) {
+            pending.add(id, latitude, longitude, bearing);
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        main.post(schedule);
+    }
+
+    /**
+     * Queues removal of a vehicle. It can be called from any thread.
+     *
+     * @param id of the vehicle
+     */
+    public void remove(long id) {
+        update(id, Double.NaN, Double.NaN, 0);
+    }
+
+    /**
+     * @return number of vehicles, to be called on the main thread
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of markers showing vehicles at the moment, to be called on the main thread
+     */
+    public int getMarkerCount() {
+        int markers = 0;
+        for (int i = 0; i < count; i++)
+            if (this.markers[i] != null)
+                markers++;
+        return markers;
+    }
+
+    /**
+     * @param marker a marker clicked on the map
+     * @return id of the vehicle shown by the marker, or -1 if it is not a marker of this layer
+     */
+    public long getVehicleId(Marker marker) {
+        Object tag = marker.getTag();
+        if (tag instanceof Long) {
+            int index = find((Long) tag);
+            if (index >= 0 && markers[index] == marker)
+                return ids[index];
+        }
+        return -1;
+    }
+
+    /**
+     * @param id of the vehicle
+     * @return last position of the vehicle, or null if it is not known. To be called on the main thread.
+     */
+    public LatLng getPosition(long id) {
+        int index = find(id);
+        return index >= 0 ? new LatLng(latitudes[index], longitudes[index]) : null;
+    }
+
+    /**
+     * @return a copy of the positions of all the vehicles, for example to be clustered by {@link MarkerClusterer}. To be called on the
+     * main thread.
+     */
+    public CoordinateArray getPositions() {
+        CoordinateArray positions = new CoordinateArray(count);
+        for (int i = 0; i < count; i++)
+            positions.add(latitudes[i], longitudes[i]);
+        return positions;
+    }
+
+    /**
+     * Reads the viewport and shows or hides vehicles accordingly, in a single pass over the primitive arrays.
+     */
+    @Override
+    public void onCameraIdle() {
+        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        double height = bounds.northeast.latitude - bounds.southwest.latitude;
+        double width = bounds.northeast.longitude - bounds.southwest.longitude;
+        if (width < 0)
+            width += 360;
+        south = Math.max(-90, bounds.southwest.latitude - height * VIEWPORT_MARGIN);
+        north = Math.min(90, bounds.northeast.latitude + height * VIEWPORT_MARGIN);
+        if (width * (1 + 2 * VIEWPORT_MARGIN) >= 360) {
+            west = -180;
+            east = 180;
+        } else {
+            west = wrap(bounds.southwest.longitude - width * VIEWPORT_MARGIN);
+            east = wrap(bounds.northeast.longitude + width * VIEWPORT_MARGIN);
+        }
+        hasViewport = true;
+
+        for (int i = 0; i < count; i++) {
+            boolean visible = isInViewport(latitudes[i], longitudes[i]);
+            if (visible && markers[i] == null)
+                show(i);
+            else if (!visible && markers[i] != null)
+                hide(i);
+        }
+    }
+
+    /**
+     * Removes all the vehicles and their markers from the map. To be called on the main thread.
+     */
+    public void clear() {
+        synchronized (lock) {
+            pending.count = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            if (markers[i] != null) {
+                FrameAnimator.getInstance().cancel(markers[i]);
+                markers[i].remove();
+                markers[i] = null;
+            }
+        }
+        for (Marker marker : pool)
+            marker.remove();
+        pool.clear();
+        count = 0;
+        table = new int[table.length];
+    }
+
+    private void apply(long id, double latitude, double longitude, float bearing) {
+        int index = find(id);
+        if (Double.isNaN(latitude)) {
+            if (index >= 0)
+                delete(index);
+            return;
+        }
+        if (index < 0)
+            index = insert(id);
+
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        bearings[index] = bearing;
+        boolean visible = isInViewport(latitude, longitude);
+        Marker marker = markers[index];
+        if (marker == null) {
+            if (visible)
+                show(index);
+        } else if (!visible) {
+            hide(index);
+        } else {
+            LatLng position = new LatLng(latitude, longitude);
+            if (moveDuration > 0)
+                FrameAnimator.getInstance().moveMarker(marker, position, moveDuration);
+            else
+                marker.setPosition(position);
+            if (rotation)
+                marker.setRotation(bearing);
+        }
+    }
+
+    private boolean isInViewport(double latitude, double longitude) {
+        if (!hasViewport || latitude < south || latitude > north)
+            return false;
+        return west <= east ? longitude >= west && longitude <= east : longitude >= west || longitude <= east;
+    }
+
+    /**
+     * Gives a marker to the vehicle, a hidden one if any
+     */
+    private void show(int index) {
+        LatLng position = new LatLng(latitudes[index], longitudes[index]);
+        Marker marker = pool.poll();
+        if (marker != null) {
+            marker.setPosition(position);
+            marker.setRotation(rotation ? bearings[index] : 0);
+            marker.setVisible(true);
+        } else {
+            MarkerOptions options = new MarkerOptions()
+                    .position(position)
+                    .anchor(0.5f, 0.5f)
+                    .flat(rotation)
+                    .rotation(rotation ? bearings[index] : 0);
+            if (icon != null)
+                options.icon(icon);
+            marker = map.addMarker(options);
+        }
+        marker.setTag(ids[index]);
+        markers[index] = marker;
+    }
+
+    /**
+     * Takes the marker back from the vehicle, it is hidden and kept for reuse
+     */
+    private void hide(int index) {
+        Marker marker = markers[index];
+        markers[index] = null;
+        FrameAnimator.getInstance().cancel(marker);
+        if (pool.size() < MAX_POOL) {
+            marker.setVisible(false);
+            pool.push(marker);
+        } else {
+            marker.remove();
+        }
+    }
+
+    /**
+     * @return index of the vehicle, or -1 if it is not known
+     */
+    private int find(long id) {
+        int mask = table.length - 1;
+        for (int slot = hash(id) & mask; table[slot] != 0; slot = (slot + 1) & mask)
+            if (ids[table[slot] - 1] == id)
+                return table[slot] - 1;
+        return -1;
+    }
+
+    /**
+     * Adds a vehicle at the end of the arrays, growing them and the table if needed
+     *
+     * @return index of the new vehicle
+     */
+    private int insert(long id) {
+        if (count == ids.length) {
+            int capacity = count * 2;
+            long[] ids = new long[capacity];
+            double[] latitudes = new double[capacity], longitudes = new double[capacity];
+            float[] bearings = new float[capacity];
+            Marker[] markers = new Marker[capacity];
+            System.arraycopy(this.ids, 0, ids, 0, count);
+            System.arraycopy(this.latitudes, 0, latitudes, 0, count);
+            System.arraycopy(this.longitudes, 0, longitudes, 0, count);
+            System.arraycopy(this.bearings, 0, bearings, 0, count);
+            System.arraycopy(this.markers, 0, markers, 0, count);
+            this.ids = ids;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.bearings = bearings;
+            this.markers = markers;
+        }
+        int index = count++;
+        ids[index] = id;
+        markers[index] = null;
+
+        // table is kept at most half full
+        if (count * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int i = 0; i < count; i++)
+                put(i);
+        } else {
+            put(index);
+        }
+        return index;
+    }
+
+    private void put(int index) {
+        int mask = table.length - 1;
+        int slot = hash(ids[index]) & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+    }
+
+    /**
+     * Removes a vehicle, the last vehicle is moved into its place so the arrays stay dense
+     */
+    private void delete(int index) {
+        if (markers[index] != null)
+            hide(index);
+        removeFromTable(index);
+        int last = --count;
+        if (index != last) {
+            removeFromTable(last);
+            ids[index] = ids[last];
+            latitudes[index] = latitudes[last];
+            longitudes[index] = longitudes[last];
+            bearings[index] = bearings[last];
+            markers[index] = markers[last];
+            put(index);
+        }
+        markers[last] = null;
+    }
+
+    /**
+     * Deletes the entry of a vehicle with backward shift, so that no tombstone is left in the table
+     */
+    private void removeFromTable(int index) {
+        int mask = table.length - 1;
+        int slot = hash(ids[index]) & mask;
+        while (table[slot] != index + 1)
+            slot = (slot + 1) & mask;
+        table[slot] = 0;
+        for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hash(ids[table[next] - 1]) & mask;
+            // entry can move back into the hole only if the hole is between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+        }
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return longitude in the range of [-180, 180)
+     */
+    private static double wrap(double longitude) {
+        return longitude >= 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+    }
+
+    /**
+     * Queue of updates in primitive arrays
+     */
+    private static final class Updates {
+        long[] ids = new long[64];
+        double[] latitudes = new double[64], longitudes = new double[64];
+        float[] bearings = new float[64];
+        int count;
+
+        void add(long id, double latitude, double longitude, float bearing) {
+            if (count == ids.length) {
+                int capacity = count * 2;
+                long[] ids = new long[capacity];
+                double[] latitudes = new double[capacity], longitudes = new double[capacity];
+                float[] bearings = new float[capacity];
+                System.arraycopy(this.ids, 0, ids, 0, count);
+                System.arraycopy(this.latitudes, 0, latitudes, 0, count);
+                System.arraycopy(this.longitudes, 0, longitudes, 0, count);
+                System.arraycopy(this.bearings, 0, bearings, 0, count);
+                this.ids = ids;
+                this.latitudes = latitudes;
+                this.longitudes = longitudes;
+                this.bearings = bearings;
+            }
+            ids[count] = id;
+            latitudes[count] = latitude;
+            longitudes[count] = longitude;
+            bearings[count] = bearing;
+            count++;
+        }
+    }
+}
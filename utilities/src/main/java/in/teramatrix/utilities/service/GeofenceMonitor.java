@@ -0,0 +1,342 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import in.teramatrix.utilities.util.GUtils;
+import in.teramatrix.utilities.util.PreparedRegion;
+import in.teramatrix.utilities.util.ZoneIndex;
+
+/**
+ * A geo-fence engine to monitor many zones at the same time. Zones may be polygons or circles, and all of them are kept in a
+ * {@link ZoneIndex}, so on every location update only those zones are tested which overlap the location, plus those zones
+ * in which the device already is. That's why cost of a location update doesn't grow with the number of zones.
+ * <p>
+ * It is a {@link LocationListener}, so just add it to a running {@link LocationHandler} and it will be fed with filtered locations.
+ * <pre>
+ * GeofenceMonitor monitor = new GeofenceMonitor()
+ *         .addPolygon(1, points)
+ *         .addCircle(2, center, 500)
+ *         .setGeofenceListener(listener);
+ * locationHandler.addLocationListener(monitor);
+ * </pre>
+ * To avoid flickering on the border of a zone, an enter or exit event is published only when the same state has been observed
+ * in {@code confirmations} consecutive locations. A dwell event is published once if the device stays inside a zone for {@code dwellTime}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GeofenceMonitor implements LocationListener {
+    /**
+     * All the zones being monitored
+     */
+    private final List<Zone> zones;
+
+    /**
+     * Zones in which the device is or is about to enter / exit, these are tested on every location update even if
+     * not found in the index.
+     */
+    private List<Zone> active;
+
+    /**
+     * A spare list to swap with {@code active} on every location update
+     */
+    private List<Zone> spare;
+
+    /**
+     * Spatial index over the zones, it is built again on first location update after adding / removing zones.
+     */
+    private ZoneIndex index;
+
+    /**
+     * A reusable buffer for the candidates returned by the {@link ZoneIndex}
+     */
+    private int[] candidates;
+
+    /**
+     * Number of location updates processed, to mark zones already tested in the current update
+     */
+    private long sequence;
+
+    /**
+     * Number of consecutive locations to confirm an enter or an exit
+     */
+    private int confirmations;
+
+    /**
+     * Time in milliseconds after which a dwell event will be published for a zone
+     */
+    private long dwellTime;
+
+    /**
+     * Locations with accuracy radius more than this (in meters) will be ignored, because these can't tell the side of a border.
+     */
+    private float accuracyLimit;
+
+    /**
+     * To publish enter, exit and dwell events
+     */
+    private GeofenceListener listener;
+
+    public GeofenceMonitor() {
+        this.zones = new ArrayList<>();
+        this.active = new ArrayList<>();
+        this.spare = new ArrayList<>();
+
+        //Default Settings
+        this.confirmations = 2;
+        this.dwellTime = 1000 * 60 * 5;
+        this.accuracyLimit = 100;
+    }
+
+    public GeofenceMonitor setGeofenceListener(GeofenceListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public GeofenceMonitor setConfirmations(int confirmations) {
+        this.confirmations = Math.max(1, confirmations);
+        return this;
+    }
+
+    public GeofenceMonitor setDwellTime(long dwellTime) {
+        this.dwellTime = dwellTime;
+        return this;
+    }
+
+    public GeofenceMonitor setAccuracyLimit(float accuracyLimit) {
+        this.accuracyLimit = accuracyLimit;
+        return this;
+    }
+
+    /**
+     * @param id     to identify the zone in events
+     * @param points vertices of the polygon
+     * @return current instance of this class
+     */
+    public GeofenceMonitor addPolygon(int id, List<LatLng> points) {
+        return addPolygon(id, new PreparedRegion(points));
+    }
+
+    /**
+     * @param id     to identify the zone in events
+     * @param region an already prepared polygon
+     * @return current instance of this class
+     */
+    public synchronized GeofenceMonitor addPolygon(int id, PreparedRegion region) {
+        Zone zone = new Zone(id);
+        zone.region = region;
+        zone.minLat = region.getMinLatitude();
+        zone.maxLat = region.getMaxLatitude();
+        zone.minLng = region.getMinLongitude();
+        zone.maxLng = region.getMaxLongitude();
+        zones.add(zone);
+        index = null;
+        return this;
+    }
+
+    /**
+     * @param id     to identify the zone in events
+     * @param center center of the circle
+     * @param radius radius of the circle in meters
+     * @return current instance of this class
+     */
+    public synchronized GeofenceMonitor addCircle(int id, LatLng center, double radius) {
+        Zone zone = new Zone(id);
+        zone.latitude = center.latitude;
+        zone.longitude = center.longitude;
+        zone.radius = radius / 1000;
+
+        // bounding box of the circle, in the longitude range of the index
+        double dLat = Math.toDegrees(zone.radius / 6371);
+        double cos = Math.cos(Math.toRadians(center.latitude));
+        double dLng = cos > 1e-6 ? dLat / cos : 360;
+        zone.minLat = center.latitude - dLat;
+        zone.maxLat = center.latitude + dLat;
+        double west = center.longitude - dLng, east = center.longitude + dLng;
+        if (dLng >= 180) {
+            // circle reaches around the pole, so it will be registered for all longitudes
+            zone.minLng = 0;
+            zone.maxLng = 360;
+        } else {
+            // a circle across 0 degree gets its east end less than its west end, index registers it at both ends of the range
+            zone.minLng = west < 0 ? west + 360 : west;
+            zone.maxLng = east < 0 ? east + 360 : east;
+        }
+        zones.add(zone);
+        index = null;
+        return this;
+    }
+
+    /**
+     * To stop monitoring a zone. No exit event will be published for it.
+     *
+     * @param id of the zone
+     * @return current instance of this class
+     */
+    public synchronized GeofenceMonitor remove(int id) {
+        for (int i = zones.size() - 1; i >= 0; i--) {
+            Zone zone = zones.get(i);
+            if (zone.id == id) {
+                zones.remove(i);
+                active.remove(zone);
+            }
+        }
+        index = null;
+        return this;
+    }
+
+    /**
+     * To stop monitoring all the zones
+     */
+    public synchronized void clear() {
+        zones.clear();
+        active.clear();
+        index = null;
+    }
+
+    /**
+     * @param id of the zone
+     * @return true if the device is inside the zone, according to confirmed events
+     */
+    public synchronized boolean isInside(int id) {
+        for (int i = 0; i < active.size(); i++)
+            if (active.get(i).id == id && active.get(i).inside)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void onLocationChanged(Location location) {
+        if (location == null || (location.hasAccuracy() && location.getAccuracy() > accuracyLimit))
+            return;
+
+        if (index == null) buildIndex();
+
+        double lat = location.getLatitude();
+        double lng = location.getLongitude();
+        long time = location.getTime();
+        long stamp = ++sequence;
+
+        // zones which were already being tracked
+        List<Zone> next = spare;
+        next.clear();
+        for (int i = 0; i < active.size(); i++) {
+            Zone zone = active.get(i);
+            zone.stamp = stamp;
+            update(zone, zone.contains(lat, lng), location, time);
+            if (zone.isActive()) next.add(zone);
+        }
+
+        // zones found in the index around the location
+        int count = index.query(lat, lng, candidates);
+        for (int i = 0; i < count; i++) {
+            Zone zone = zones.get(candidates[i]);
+            if (zone.stamp == stamp) continue;
+            zone.stamp = stamp;
+            if (zone.contains(lat, lng)) {
+                update(zone, true, location, time);
+                if (zone.isActive()) next.add(zone);
+            }
+        }
+
+        spare = active;
+        active = next;
+    }
+
+    /**
+     * Hysteresis and dwell logic of a single zone
+     *
+     * @param zone   to be updated
+     * @param inside whether current location is inside the zone or not
+     */
+    private void update(Zone zone, boolean inside, Location location, long time) {
+        if (inside == zone.inside) {
+            zone.pending = 0;
+        } else if (++zone.pending >= confirmations) {
+            zone.inside = inside;
+            zone.pending = 0;
+            if (inside) {
+                zone.enteredAt = time;
+                zone.dwelled = false;
+                if (listener != null) listener.onEnter(zone.id, location);
+            } else {
+                if (listener != null) listener.onExit(zone.id, location);
+            }
+        }
+
+        if (zone.inside && !zone.dwelled && time - zone.enteredAt >= dwellTime) {
+            zone.dwelled = true;
+            if (listener != null) listener.onDwell(zone.id, location);
+        }
+    }
+
+    private void buildIndex() {
+        int size = zones.size();
+        double[] minLats = new double[size], maxLats = new double[size];
+        double[] minLngs = new double[size], maxLngs = new double[size];
+        for (int i = 0; i < size; i++) {
+            Zone zone = zones.get(i);
+            minLats[i] = zone.minLat;
+            maxLats[i] = zone.maxLat;
+            minLngs[i] = zone.minLng;
+            maxLngs[i] = zone.maxLng;
+        }
+        index = new ZoneIndex(minLats, maxLats, minLngs, maxLngs);
+        candidates = new int[index.getMaxCandidates()];
+    }
+
+    /**
+     * A single zone, either a polygon or a circle, along with its current state.
+     */
+    private static class Zone {
+        final int id;
+        PreparedRegion region;
+        double latitude, longitude, radius;
+        double minLat, maxLat, minLng, maxLng;
+        boolean inside, dwelled;
+        int pending;
+        long enteredAt, stamp;
+
+        Zone(int id) {
+            this.id = id;
+        }
+
+        boolean contains(double lat, double lng) {
+            return region != null
+                    ? region.contains(lat, lng)
+                    : GUtils.getDistance(latitude, longitude, lat, lng) <= radius;
+        }
+
+        boolean isActive() {
+            return inside || pending > 0;
+        }
+    }
+
+    /**
+     * An interface to publish geo-fence events in the caller classes. All the methods are invoked on the thread
+     * that delivers locations to the {@link GeofenceMonitor}.
+     */
+    public interface GeofenceListener {
+        /**
+         * @param id       of the zone entered
+         * @param location which confirmed the entry
+         */
+        void onEnter(int id, Location location);
+
+        /**
+         * @param id       of the zone exited
+         * @param location which confirmed the exit
+         */
+        void onExit(int id, Location location);
+
+        /**
+         * @param id       of the zone in which device has been staying for {@code dwellTime}
+         * @param location latest location
+         */
+        void onDwell(int id, Location location);
+    }
+}
@@ -0,0 +1,181 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+/**
+ * A <a href="https://en.wikipedia.org/wiki/Kalman_filter">Kalman filter</a> stage for the filter pipeline of {@link LocationHandler}.
+ * Unlike the built-in {@link LocationHandler.Filters}, which can only replace a bad fix with the last location, this stage blends every
+ * fix with a prediction, so the track becomes smooth rather than stair-stepped.
+ * <ul type="square">
+ *     <li>Motion is modelled at constant velocity, separately in east and north direction, in meters around the last estimate</li>
+ *     <li>Reported accuracy of the fix is used as measurement noise, so an inaccurate fix moves the estimate only a little</li>
+ *     <li>Unexpected acceleration is modelled as process noise, see {@code setProcessNoise()}</li>
+ * </ul>
+ * Smoothed latitude, longitude, speed and bearing are written back to the location, and accuracy is replaced by the standard deviation
+ * of the estimate. Both axes share the same covariance because noise is the same in every direction, so a fix costs a few
+ * multiplications and nothing is allocated.
+ * <pre>
+ * new LocationHandler(this).setFilters(Filters.ZERO).addFilter(new KalmanFilter()).setLocationListener(listener).start();
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class KalmanFilter implements LocationFilter {
+    /**
+     * Meters in a degree of latitude
+     */
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    /**
+     * Intensity of unexpected acceleration in m^2/s^3, larger is quicker to follow turns but less smooth
+     */
+    private double processNoise = 3;
+
+    /**
+     * Accuracy in meters used for a fix which doesn't report any
+     */
+    private float defaultAccuracy = 30;
+
+    /**
+     * If two fixes are more than this milliseconds apart, the filter starts again from the new fix
+     */
+    private long maxGap = 60 * 1000;
+
+    /**
+     * Estimated position, state is kept in meters relative to this point
+     */
+    private double latitude, longitude;
+
+    /**
+     * Estimated velocity in m/s, towards east and north
+     */
+    private double vx, vy;
+
+    /**
+     * Covariance of position (p00), position and velocity (p01) and velocity (p11), same for both axes
+     */
+    private double p00, p01, p11;
+
+    /**
+     * Time of the last fix, 0 if the filter has not been initialized
+     */
+    private long time;
+
+    /**
+     * @param processNoise intensity of unexpected acceleration in m^2/s^3. About 1 suits walking and 3 to 5 suits vehicles.
+     * @return current instance of this class
+     */
+    public KalmanFilter setProcessNoise(double processNoise) {
+        this.processNoise = processNoise;
+        return this;
+    }
+
+    /**
+     * @param defaultAccuracy accuracy in meters assumed for a fix which doesn't report any
+     * @return current instance of this class
+     */
+    public KalmanFilter setDefaultAccuracy(float defaultAccuracy) {
+        this.defaultAccuracy = defaultAccuracy;
+        return this;
+    }
+
+    /**
+     * @param maxGap in milliseconds, the filter starts again from the new fix if the previous one is older than this
+     * @return current instance of this class
+     */
+    public KalmanFilter setMaxGap(long maxGap) {
+        this.maxGap = maxGap;
+        return this;
+    }
+
+    @Override
+    public synchronized Location filter(Location location) {
+        double r = location.hasAccuracy() && location.getAccuracy() > 0 ? location.getAccuracy() : defaultAccuracy;
+        r *= r;
+
+        long dt = location.getTime() - time;
+        if (time == 0 || dt > maxGap || dt < -maxGap) {
+            initialize(location, r);
+            return location;
+        }
+        double t = Math.max(0, dt) / 1000.0;
+
+        // measurement in meters, relative to the last estimate
+        double cos = Math.cos(Math.toRadians(latitude));
+        double dLng = location.getLongitude() - longitude;
+        if (dLng > 180) dLng -= 360;
+        else if (dLng < -180) dLng += 360;
+        double zx = dLng * METERS_PER_DEGREE * cos;
+        double zy = (location.getLatitude() - latitude) * METERS_PER_DEGREE;
+
+        // predict
+        double px = vx * t;
+        double py = vy * t;
+        double q = processNoise;
+        p00 += t * (2 * p01 + t * p11) + q * t * t * t / 3;
+        p01 += t * p11 + q * t * t / 2;
+        p11 += q * t;
+
+        // update
+        double s = p00 + r;
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        double ix = zx - px;
+        double iy = zy - py;
+        px += k0 * ix;
+        py += k0 * iy;
+        vx += k1 * ix;
+        vy += k1 * iy;
+        p11 -= k1 * p01;
+        p01 -= k0 * p01;
+        p00 -= k0 * p00;
+
+        latitude += py / METERS_PER_DEGREE;
+        longitude += cos > 1e-9 ? px / (METERS_PER_DEGREE * cos) : 0;
+        if (longitude > 180) longitude -= 360;
+        else if (longitude < -180) longitude += 360;
+        time = location.getTime();
+
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAccuracy((float) Math.sqrt(p00));
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        location.setSpeed(speed);
+        if (speed > 0.5f) {
+            double bearing = Math.toDegrees(Math.atan2(vx, vy));
+            location.setBearing((float) (bearing < 0 ? bearing + 360 : bearing));
+        }
+        return location;
+    }
+
+    @Override
+    public synchronized void reset() {
+        time = 0;
+    }
+
+    /**
+     * @return estimated speed in m/s, 0 if no fix has been filtered yet
+     */
+    public synchronized double getSpeed() {
+        return time == 0 ? 0 : Math.sqrt(vx * vx + vy * vy);
+    }
+
+    /**
+     * Starts the filter from a fix, taking its speed and bearing as initial velocity if reported
+     */
+    private void initialize(Location location, double r) {
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        time = location.getTime();
+        if (location.hasSpeed() && location.hasBearing()) {
+            double bearing = Math.toRadians(location.getBearing());
+            vx = location.getSpeed() * Math.sin(bearing);
+            vy = location.getSpeed() * Math.cos(bearing);
+            p11 = 4;
+        } else {
+            vx = vy = 0;
+            p11 = 100;
+        }
+        p00 = r;
+        p01 = 0;
+    }
+}
@@ -0,0 +1,23 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+/**
+ * A single stage of the filter pipeline of {@link LocationHandler}. Stages added by {@code LocationHandler.addFilter()} run in the
+ * order they were added, after the built-in {@link LocationHandler.Filters}, and each stage receives the output of the previous one.
+ * <p>
+ * A stage may alter the location it receives and return it, return some other location or return null to drop the fix completely,
+ * in which case no listener is notified. Stages are called for every fix, so they should not allocate anything per fix.
+ */
+public interface LocationFilter {
+    /**
+     * @param location output of the previous stage, never null
+     * @return location to be passed to the next stage, or null to drop the fix
+     */
+    Location filter(Location location);
+
+    /**
+     * Called when the handler is (re)started, a stage should forget all of its state here.
+     */
+    void reset();
+}
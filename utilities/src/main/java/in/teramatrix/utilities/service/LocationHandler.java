@@ -5,6 +5,11 @@ import android.content.Context;
 import android.content.IntentSender;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -13,16 +18,19 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.LocationSettingsRequest;
 import com.google.android.gms.location.LocationSettingsResult;
 import com.google.android.gms.location.LocationSettingsStates;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * At the time, <a href="https://developers.google.com/android/reference/com/google/android/gms/location/FusedLocationProviderApi#top_of_page">
@@ -45,10 +53,52 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
 
     /**
      * For a quick access to the last known / most recent location, and for the filters and comparison with
-     * latest / current location.
+     * latest / current location. It is volatile, so a location published by the scheduler thread is visible to every thread.
+     *
+     * @deprecated use {@code getLastLocation()}, this field will not be public in future
      */
+    @Deprecated
     @SuppressWarnings("WeakerAccess")
-    public static Location lastLocation;
+    public static volatile Location lastLocation;
+
+    /**
+     * A single thread for all the handlers, on which delayed updates of {@code lastLocation} are scheduled
+     */
+    private static HandlerThread schedulerThread;
+    private static Handler scheduler;
+
+    /**
+     * What of the message to update {@code lastLocation}
+     */
+    private static final int MSG_LAST_LOCATION = 1;
+
+    /**
+     * What of the messages to process a batch on the worker thread, and to deliver a location on the main thread
+     */
+    private static final int MSG_BATCH = 2, MSG_DELIVER = 3, MSG_LOCATION = 4, MSG_MOTION = 5;
+
+    /**
+     * If true, locations are filtered on a dedicated background thread, see {@code setBackground()}
+     */
+    private boolean background;
+
+    /**
+     * Dedicated thread of this handler in background mode, and handlers of the worker and of the main thread. Handler of the main
+     * thread is never cleared once created, because the worker may still be publishing a location while the handler is stopped.
+     */
+    private HandlerThread workerThread;
+    private volatile Handler worker, main;
+
+    /**
+     * True until {@code start()} and from {@code stop()} on, locations still posted to the main thread meanwhile are dropped
+     */
+    private volatile boolean stopped = true;
+
+    /**
+     * Store of the last filtered location, only if this handler is persistent
+     */
+    private boolean persistent;
+    private LocationStore store;
 
     /**
      * <b>The main entry point for Google Play services integration.</b>
@@ -56,7 +106,7 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
      * some will queue up calls before GoogleApiClient is connected; Here we need to be connected to use
      * <a href="https://developers.google.com/android/reference/com/google/android/gms/location/FusedLocationProviderApi">Fused Location API.</a>
      */
-    private static GoogleApiClient mGoogleApiClient;
+    private GoogleApiClient mGoogleApiClient;
 
     /**
      * A data object that contains quality of service parameters for requests to the
@@ -64,13 +114,34 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
      * {@link LocationRequest} objects are used to request a quality of service for location updates from the
      * <a href="https://developers.google.com/android/reference/com/google/android/gms/location/FusedLocationProviderApi">Fused Location API.</a>
      */
-    private static LocationRequest mLocationRequest;
+    private LocationRequest mLocationRequest;
 
     /**
      * To relieve continuous location updates
      */
     private LocationListener mLocationListener;
 
+    /**
+     * Some more listeners to relieve the same location updates, for example a geo-fence monitor. Array is replaced on every
+     * add / remove so that it can be iterated on every location update without any lock or allocation.
+     */
+    private volatile LocationListener[] listeners = new LocationListener[0];
+
+    /**
+     * To relieve all the locations of a batch at once
+     */
+    private BatchListener batchListener;
+
+    /**
+     * Maximum time in milliseconds for which fused location provider may hold locations to deliver them in a batch, 0 for no batching
+     */
+    private long maxWaitTime;
+
+    /**
+     * Filtered locations of the batch being delivered, reused for every batch
+     */
+    private final ArrayList<Location> batch = new ArrayList<>();
+
     /**
      * Set the priority of the request.
      * Use with a priority constant such as PRIORITY_HIGH_ACCURACY. No other values are accepted.
@@ -125,9 +196,107 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
     private int accuracyLimit;
 
     /**
-     * A set of location filter to refine location and to deliver best location.
+     * A set of location filter to refine location and to deliver best location, compiled by {@code setFilters()} into a bit mask
+     * of the ordinals of the filters, so that checking a filter on every location is a single bitwise AND.
      */
-    private Filters[] filters;
+    private int filters;
+
+    /**
+     * Tag of the log, which is written only if its level is enabled, for example by {@code adb shell setprop log.tag.LocationHandler DEBUG}.
+     * Level is checked once on {@code start()}, so no message is built for a location otherwise.
+     */
+    private static final String TAG = "LocationHandler";
+    private boolean debug;
+
+    /**
+     * Pluggable stages of the filter pipeline, run after the built-in {@link Filters}. Array is replaced on every add / remove
+     * so that it can be iterated on every location update without any lock or allocation.
+     */
+    private volatile LocationFilter[] stages = new LocationFilter[0];
+
+    /**
+     * If true, this handler will not open its own {@link GoogleApiClient}. Instead it will subscribe to the {@link LocationHub},
+     * which keeps a single location subscription for all the shared handlers of the app.
+     */
+    private boolean shared;
+
+    /**
+     * Minimum time in milliseconds between two delivered locations. Locations arriving sooner will be dropped before filtering.
+     */
+    private long throttle;
+
+    /**
+     * Time of the last location that passed the throttle
+     */
+    private long lastDeliveredTime;
+
+    /**
+     * Hub this handler has subscribed to, only if it is {@code shared}
+     */
+    private LocationHub hub;
+
+    /**
+     * Used by {@link Filters#ACCELEROMETER} to know when the device is parked
+     */
+    private MotionDetector motionDetector;
+
+    /**
+     * Motion listener which was set on the {@link MotionDetector} before this handler took its place, notified after this handler
+     */
+    private MotionDetector.MotionListener chainedMotionListener;
+
+    /**
+     * True while {@link MotionDetector} reports the device as stationary
+     */
+    private volatile boolean stationary;
+
+    /**
+     * Last location delivered to the listeners, and the one delivered over and over while the device is stationary
+     */
+    private volatile Location lastDelivered, frozen;
+
+    /**
+     * While stationary, location is requested at low power and not more often than this interval, in milliseconds
+     */
+    private static final long STATIONARY_INTERVAL = 60 * 1000;
+
+    /**
+     * If true, request is chosen from {@link Tier}s according to the speed of the device rather than the fixed settings
+     */
+    private boolean adaptive;
+
+    /**
+     * Tier currently registered in adaptive mode, and the tier suggested by the latest locations along with the number of
+     * consecutive locations suggesting it. These are changed only on the thread receiving locations, the worker thread in
+     * background mode, and tier is volatile to be read from the thread of the hub.
+     */
+    private volatile Tier tier = Tier.CITY;
+    private Tier candidate = Tier.CITY;
+    private int candidateCount;
+
+    /**
+     * Number of consecutive locations that should suggest a slower tier before it is registered
+     */
+    private static final int TIER_CONFIRMATIONS = 3;
+
+    /**
+     * Number of locations processed, number of locations altered by each of the {@link Filters}, and number of locations dropped
+     * by throttle or by a stage of the pipeline. These are to tune the filters, for example by a {@link TraceReplayer}.
+     */
+    private long processed, dropped;
+    private final long[] rejections = new long[Filters.values().length];
+
+    /**
+     * Delay in milliseconds before a delivered location becomes {@code lastLocation}
+     */
+    private static final long LAST_LOCATION_DELAY = 3000;
+
+    /**
+     * True while a {@link TraceReplayer} pushes a trace into this handler. Locations are then compared with {@code replayLast},
+     * the last accepted location of the trace, and neither {@code lastLocation} nor the store is updated.
+     */
+    private boolean replaying;
+    private Location replayLast;
 
     /**
      * A flag to request location services
@@ -195,6 +364,64 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
         return this;
     }
 
+    /**
+     * Same location, which is delivered to the listener set by {@code setLocationListener()}, will also be delivered to the listeners
+     * added by this method. It is useful when more than one component wants to consume filtered locations of a single {@link LocationHandler}.
+     *
+     * @param listener a concrete implementation of {@link LocationListener}
+     * @return current instance of this class
+     */
+    public synchronized LocationHandler addLocationListener(LocationListener listener) {
+        LocationListener[] updated = new LocationListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        listeners = updated;
+        return this;
+    }
+
+    /**
+     * @param listener which was added by {@code addLocationListener()}
+     * @return current instance of this class
+     */
+    public synchronized LocationHandler removeLocationListener(LocationListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                LocationListener[] updated = new LocationListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                listeners = updated;
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * In batched mode, all the locations of a batch are filtered in a single pass and then delivered at once to this listener.
+     * Every location is still delivered to the other listeners as well.
+     *
+     * @param batchListener a concrete implementation of {@link BatchListener}
+     * @return current instance of this class
+     * @see #setMaxWaitTime(long)
+     */
+    public LocationHandler setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+        return this;
+    }
+
+    /**
+     * Sets the maximum wait time of the request. Locations are still computed every {@code interval}, but fused location provider
+     * may hold them for up to this time and deliver them in a single batch. For background tracking, a wait time of a minute
+     * wakes the app once per minute instead of once per location. It should be at least twice the interval to have any effect.
+     *
+     * @param maxWaitTime in milliseconds, 0 to deliver every location as soon as it is available
+     * @return current instance of this class
+     */
+    public LocationHandler setMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+        return this;
+    }
+
     /**
      * Set the priority of the request.
      * Use with a priority constant such as PRIORITY_HIGH_ACCURACY. No other values are accepted.
@@ -245,7 +472,132 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
      * @return current instance of this class
      */
     public LocationHandler setFilters(Filters... filters) {
-        this.filters = filters;
+        int plan = 0;
+        if (filters != null)
+            for (Filters filter : filters)
+                plan |= filter.mask;
+        this.filters = plan;
+        return this;
+    }
+
+    /**
+     * Add a stage to the filter pipeline, for example a {@link KalmanFilter} to smooth the track. Stages run in the order they
+     * were added, after the built-in {@link Filters}, and any stage can drop a location by returning null.
+     *
+     * @param filter a concrete implementation of {@link LocationFilter}
+     * @return current instance of this class
+     */
+    public synchronized LocationHandler addFilter(LocationFilter filter) {
+        LocationFilter[] updated = new LocationFilter[stages.length + 1];
+        System.arraycopy(stages, 0, updated, 0, stages.length);
+        updated[stages.length] = filter;
+        stages = updated;
+        return this;
+    }
+
+    /**
+     * @param filter which was added by {@code addFilter()}
+     * @return current instance of this class
+     */
+    public synchronized LocationHandler removeFilter(LocationFilter filter) {
+        for (int i = 0; i < stages.length; i++) {
+            if (stages[i] == filter) {
+                LocationFilter[] updated = new LocationFilter[stages.length - 1];
+                System.arraycopy(stages, 0, updated, 0, i);
+                System.arraycopy(stages, i + 1, updated, i, stages.length - i - 1);
+                stages = updated;
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * In background mode, locations are received, filtered and delivered to the listeners added by {@code addLocationListener()}
+     * and to the {@link BatchListener} on a dedicated background thread, so filters and heavy listeners like geo-fence monitors or
+     * recorders don't compete with map rendering. Only the listener set by {@code setLocationListener()}, which usually renders
+     * the location, is called on the main thread. It takes effect on next {@code start()}.
+     *
+     * @param background true to process locations on a background thread
+     * @return current instance of this class
+     */
+    public LocationHandler setBackground(boolean background) {
+        this.background = background;
+        return this;
+    }
+
+    /**
+     * A persistent handler saves the last filtered location on the disk now and then, and on {@code start()} it delivers the saved
+     * location at once to the listener set by {@code setLocationListener()}, so a marker can be placed in milliseconds rather than
+     * after the first fix. Restored location doesn't go through the filters and is tagged as stale, see {@code LocationStore.isStale()},
+     * until a fresh location replaces it.
+     *
+     * @param persistent true to save the last location and restore it on start
+     * @return current instance of this class
+     */
+    public LocationHandler setPersistent(boolean persistent) {
+        this.persistent = persistent;
+        return this;
+    }
+
+    /**
+     * A shared handler doesn't start its own location updates. It subscribes to the single {@link LocationHub} of the app, which
+     * requests updates from fused location provider at the strictest priority and shortest interval among all of its subscribers,
+     * and delivers every location to every subscriber. Filters, listeners and throttle of each handler still work independently.
+     * So if several features of an app need location, make all of their handlers shared, and only one GPS session will be opened.
+     *
+     * @param shared true to subscribe to {@link LocationHub} rather than opening a new {@link GoogleApiClient}
+     * @return current instance of this class
+     */
+    public LocationHandler setShared(boolean shared) {
+        this.shared = shared;
+        return this;
+    }
+
+    /**
+     * Locations arriving sooner than {@code throttle} milliseconds since the last delivered location will be dropped.
+     * It is mostly useful for a shared handler, which may receive locations faster than its own interval because of other
+     * subscribers of {@link LocationHub}.
+     *
+     * @param throttle in milliseconds, 0 to deliver every location
+     * @return current instance of this class
+     */
+    public LocationHandler setThrottle(long throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * In adaptive mode, interval, priority and smallest displacement of the request are chosen from {@link Tier}s according to the
+     * speed of the device, so locations are frequent on a highway and sparse while walking or idle. Request is registered again only
+     * when the tier changes. A faster tier is chosen at once, but a slower one should be suggested by a few consecutive locations. Fixed settings are
+     * ignored while adaptive. Combine it with {@link Filters#ACCELEROMETER} to move to {@link Tier#IDLE} as soon as a vehicle is parked.
+     *
+     * @param adaptive true to adapt the request to the speed of the device
+     * @return current instance of this class
+     */
+    public LocationHandler setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    /**
+     * @return tier currently registered in adaptive mode
+     */
+    public Tier getTier() {
+        return tier;
+    }
+
+    /**
+     * {@link Filters#ACCELEROMETER} creates a {@link MotionDetector} with default settings. Set one here to tune its threshold,
+     * still time or sampling rate. This handler becomes its motion listener on {@code start()}, a listener already set on it is
+     * kept and notified right after this handler.
+     *
+     * @param motionDetector to be used by {@link Filters#ACCELEROMETER}
+     * @return current instance of this class
+     */
+    public LocationHandler setMotionDetector(MotionDetector motionDetector) {
+        this.motionDetector = motionDetector;
         return this;
     }
 
@@ -290,7 +642,7 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
 
     /**
      * To start location service,  simply call this method. In this method, a {@link NullPointerException} will
-     * be thrown if context or location listener is null. Because can not move ahead without these two objects.
+     * be thrown if context is null or no location listener has been set or added. Because can not move ahead without these objects.
      * <p>
      * In this method, {@link LocationRequest} and {@link GoogleApiClient} has been initialized with the setting provided.
      * If no configuration provided then it will be loaded with default settings.
@@ -301,13 +653,48 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
         if (context == null)
             throw new NullPointerException("Context can not be null");
 
-        if (mLocationListener == null)
+        if (mLocationListener == null && listeners.length == 0 && batchListener == null)
             throw new NullPointerException("LocationListener can not be null");
 
-        mLocationRequest = new LocationRequest()
-                .setInterval(interval)
-                .setFastestInterval(fastestInterval)
-                .setPriority(priority);
+        for (LocationFilter stage : stages)
+            stage.reset();
+        stopped = false;
+
+        if (background && workerThread == null) {
+            workerThread = new HandlerThread("LocationHandler-worker", Process.THREAD_PRIORITY_BACKGROUND);
+            workerThread.start();
+            worker = new Handler(workerThread.getLooper(), messages);
+            if (main == null)
+                main = new Handler(Looper.getMainLooper(), messages);
+        }
+
+        if (persistent) {
+            if (store == null)
+                store = new LocationStore(context);
+            Location restored = store.restore();
+            if (restored != null && mLocationListener != null)
+                mLocationListener.onLocationChanged(restored);
+        }
+
+        stationary = false;
+        tier = candidate = Tier.CITY;
+        candidateCount = 0;
+        debug = Log.isLoggable(TAG, Log.DEBUG);
+        if (has(Filters.ACCELEROMETER)) {
+            if (motionDetector == null)
+                motionDetector = new MotionDetector(context);
+            if (motionDetector.getMotionListener() != motionListener)
+                chainedMotionListener = motionDetector.getMotionListener();
+            motionDetector.setMotionListener(motionListener).start();
+        }
+
+        if (shared) {
+            hub = LocationHub.getInstance(context);
+            hub.subscribe(this);
+            return this;
+        }
+
+        mLocationRequest = buildRequest();
 
         mGoogleApiClient = new GoogleApiClient.Builder(context)
                 .addApi(LocationServices.API)
@@ -325,10 +712,26 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
      * @return current instance of class due to builder patter and to restart the provide without configuring again.
      */
     public LocationHandler stop() {
+        stopped = true;
+        if (store != null && lastDelivered != null)
+            store.saveNow(lastDelivered);
+        if (motionDetector != null)
+            motionDetector.stop();
+        stationary = false;
+        if (hub != null) {
+            hub.unsubscribe(this);
+            hub = null;
+        }
         if (mGoogleApiClient != null && (mGoogleApiClient.isConnecting() || mGoogleApiClient.isConnected())) {
-            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
+            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, callback);
             mGoogleApiClient.disconnect();
         }
+        if (workerThread != null) {
+            main.removeMessages(MSG_DELIVER);
+            workerThread.quit();
+            workerThread = null;
+            worker = null;
+        }
         return this;
     }
 
@@ -349,93 +752,469 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
         stop();
     }
 
+    /**
+     * Locations are requested through this callback, so that a batch of locations is received in a single call
+     */
+    private final LocationCallback callback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            // locations of the result are received by this handler only, so filters may alter them in place
+            onLocations(result.getLocations(), true);
+        }
+    };
+
+    /**
+     * A single location is filtered and delivered to all the listeners. In background mode, a location pushed from any other
+     * thread is handed over to the worker thread, so it never runs through the pipeline at the same time as a live location.
+     *
+     * @param location new location
+     */
     @Override
     public void onLocationChanged(Location location) {
-        if (filters != null) {
-            if (has(Filters.NULL)
-                    && location == null
-                    && lastLocation != null) {
-                location = lastLocation;
-                location.setTime(System.currentTimeMillis());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered due to null location");
-            } else if (has(Filters.ZERO)
-                    && location != null
-                    && lastLocation != null
+        Handler worker = this.worker;
+        if (worker != null && Looper.myLooper() != worker.getLooper()) {
+            // pushed from another thread, it is filtered on the worker like every live location
+            worker.obtainMessage(MSG_LOCATION, location).sendToTarget();
+            return;
+        }
+
+        location = process(location, replaying ? replayLast : lastLocation, false);
+        if (location == null)
+            return;
+
+        publish(location);
+        if (batchListener != null) {
+            batch.clear();
+            batch.add(location);
+            batchListener.onLocationsChanged(batch);
+        }
+        updateLastLocation(location);
+    }
+
+    /**
+     * All the locations of a batch are filtered in a single pass. Each of them is delivered to the location listeners, and then
+     * all of them are delivered at once to the batch listener.
+     *
+     * @param locations a batch of locations, oldest first
+     * @param owned     true if no one else holds these locations, so that filters may alter them instead of copying
+     */
+    void onLocations(List<Location> locations, boolean owned) {
+        Handler worker = this.worker;
+        if (worker != null && Looper.myLooper() != worker.getLooper()) {
+            // received from the hub on its thread
+            worker.obtainMessage(MSG_BATCH, owned ? 1 : 0, 0, locations).sendToTarget();
+            return;
+        }
+
+        batch.clear();
+        // every location of the batch is compared with the one accepted before it, not with the last location of the previous
+        // batch, which is published only after the batch and with a delay
+        Location previous = replaying ? replayLast : lastLocation;
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = process(locations.get(i), previous, owned);
+            if (location != null) {
+                publish(location);
+                batch.add(location);
+                previous = location;
+            }
+        }
+        if (batch.isEmpty())
+            return;
+
+        if (batchListener != null)
+            batchListener.onLocationsChanged(batch);
+        updateLastLocation(batch.get(batch.size() - 1));
+    }
+
+    /**
+     * Runs the location through throttle, built-in filters and pluggable stages of the pipeline.
+     * <p>
+     * Nothing is allocated for a location received from the fused location provider, a filter moves it to the last location in place.
+     * A location held by someone else, like a location of the hub shared by all its subscribers, is copied only when it is to be
+     * altered, so the caller never sees it changed.
+     *
+     * @param location new location
+     * @param last     location to compare with, the last accepted one. It is read once by the caller, so that all the filters
+     *                 compare with the same location even if scheduler updates {@code lastLocation} meanwhile.
+     * @param owned    true if the location may be altered in place
+     * @return filtered location, or null if it has been dropped
+     */
+    private Location process(Location location, Location last, boolean owned) {
+        processed++;
+        if (throttle > 0 && location != null) {
+            if (location.getTime() - lastDeliveredTime < throttle) {
+                dropped++;
+                return null;
+            }
+            lastDeliveredTime = location.getTime();
+        }
+
+        int filters = this.filters;
+        if (filters != 0) {
+            Filters rejected = null;
+            Location position = last;
+            if (location == null) {
+                if ((filters & Filters.NULL.mask) != 0 && last != null) {
+                    // last location is shared by all the handlers, so it is never altered
+                    location = new Location(last);
+                    location.setTime(System.currentTimeMillis());
+                    owned = true;
+                    rejected = Filters.NULL;
+                }
+            } else if ((filters & Filters.ZERO.mask) != 0
+                    && last != null
                     && (location.getLatitude() == 0
                     || location.getLongitude() == 0)) {
-                location.setLatitude(lastLocation.getLatitude());
-                location.setLongitude(lastLocation.getLongitude());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered due to zero latitude and longitude");
-            } else if (has(Filters.ACCURACY)
-                    && location != null
-                    && lastLocation != null
+                rejected = Filters.ZERO;
+            } else if ((filters & Filters.ACCELEROMETER.mask) != 0
+                    && stationary
+                    && frozen != null) {
+                // device is parked, any movement of location is just a GPS drift
+                position = frozen;
+                rejected = Filters.ACCELEROMETER;
+            } else if ((filters & Filters.ACCURACY.mask) != 0
+                    && last != null
                     && location.getAccuracy() > accuracyLimit) {
-                location.setLatitude(lastLocation.getLatitude());
-                location.setLongitude(lastLocation.getLongitude());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered due to inaccurate location");
-            } else if (has(Filters.SPEED)
-                    && location != null
-                    && lastLocation != null
+                rejected = Filters.ACCURACY;
+            } else if ((filters & Filters.SPEED.mask) != 0
+                    && last != null
                     && (location.getSpeed() * 3.6) > speedLimit) {
-                location.setLatitude(lastLocation.getLatitude());
-                location.setLongitude(lastLocation.getLongitude());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered due to over speed location");
-            } else if (has(Filters.RADIUS)
-                    && location != null
-                    && lastLocation != null
-                    && location.getAccuracy() > location.distanceTo(lastLocation)) {
+                rejected = Filters.SPEED;
+            } else if ((filters & Filters.RADIUS.mask) != 0
+                    && last != null
+                    && location.getAccuracy() > location.distanceTo(last)) {
                 // if accuracy is more than distance between previous and current location
-                location.setLatitude(lastLocation.getLatitude());
-                location.setLongitude(lastLocation.getLongitude());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered because it's inside accuracy radius");
-            } else if (has(Filters.DISTANCE)
-                    && location != null
-                    && lastLocation != null
-                    && location.distanceTo(lastLocation) < distanceLimit) {
+                rejected = Filters.RADIUS;
+            } else if ((filters & Filters.DISTANCE.mask) != 0
+                    && last != null
+                    && location.distanceTo(last) < distanceLimit) {
                 // if distance between last location and current location is less than distanceLimit meters
-                location.setLatitude(lastLocation.getLatitude());
-                location.setLongitude(lastLocation.getLongitude());
-                log(location.getLatitude() + "," + location.getLongitude() + " delivered due to very short distance");
+                rejected = Filters.DISTANCE;
+            }
+
+            if (rejected != null) {
+                if (rejected != Filters.NULL) {
+                    if (!owned) {
+                        location = new Location(location);
+                        owned = true;
+                    }
+                    location.setLatitude(position.getLatitude());
+                    location.setLongitude(position.getLongitude());
+                }
+                rejections[rejected.ordinal()]++;
+                if (debug)
+                    log(location.getLatitude() + "," + location.getLongitude() + " delivered due to " + rejected);
             }
-        } else {
+        } else if (location != null && debug) {
             log(location.getLatitude() + "," + location.getLongitude() + " delivered without any filter");
         }
 
-        // finally publishing the new location
-        if (mLocationListener != null)
-        mLocationListener.onLocationChanged(location);
-        updateLastLocation(location);
+        // pluggable stages of the pipeline
+        if (location != null) {
+            LocationFilter[] stages = this.stages;
+            if (stages.length > 0 && !owned)
+                // stages may alter the location
+                location = new Location(location);
+            for (LocationFilter stage : stages) {
+                location = stage.filter(location);
+                if (location == null) {
+                    dropped++;
+                    return null;
+                }
+            }
+        }
+        return location;
     }
 
     /**
-     * Last location stored in this class will be updated by the latest location. It is in timer because
+     * Finally publishing the new location to the location listeners
+     *
+     * @param location filtered location
+     */
+    private void publish(Location location) {
+        if (adaptive)
+            adapt(location, lastDelivered);
+        lastDelivered = location;
+        Handler main = this.main;
+        if (mLocationListener != null) {
+            if (main != null && Looper.myLooper() != main.getLooper())
+                main.obtainMessage(MSG_DELIVER, location).sendToTarget();
+            else
+                mLocationListener.onLocationChanged(location);
+        }
+        LocationListener[] listeners = this.listeners;
+        for (LocationListener listener : listeners)
+            listener.onLocationChanged(location);
+    }
+
+    /**
+     * Last location stored in this class will be updated by the latest location. It is delayed because
      * last location can be used on several places in the project. If we immediatly update lastLocation
      * object then on ui (map) changes will not be reflect
      * So it should be after a few seconds.
+     * <p>
+     * Update is scheduled as a pooled {@link Message} on a single shared scheduler thread, rather than a new timer thread per location.
      *
      * @param location latest location
      */
-    private void updateLastLocation(final Location location) {
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                lastLocation = location;
+    private void updateLastLocation(Location location) {
+        if (replaying) {
+            // a replayed location is not a location of this device
+            replayLast = location;
+            return;
+        }
+        if (store != null)
+            store.save(location);
+        Handler scheduler = getScheduler();
+        scheduler.sendMessageDelayed(scheduler.obtainMessage(MSG_LAST_LOCATION, location), LAST_LOCATION_DELAY);
+    }
+
+    /**
+     * @return the last known location delivered by any {@link LocationHandler}, safe to be read from any thread. It may be null.
+     */
+    public static Location getLastLocation() {
+        return lastLocation;
+    }
+
+    /**
+     * @return handler of the shared scheduler thread, started on first use
+     */
+    private static synchronized Handler getScheduler() {
+        if (scheduler == null) {
+            schedulerThread = new HandlerThread("LocationHandler-scheduler");
+            schedulerThread.start();
+            scheduler = new Handler(schedulerThread.getLooper(), new Handler.Callback() {
+                @Override
+                public boolean handleMessage(Message message) {
+                    if (message.what == MSG_LAST_LOCATION) {
+                        lastLocation = (Location) message.obj;
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Notified by {@link MotionDetector} on main thread. In background mode, the change is handed over to the worker thread, where
+     * {@code adapt()} changes the tier, so the tier is never changed by two threads at once.
+     */
+    private final MotionDetector.MotionListener motionListener = new MotionDetector.MotionListener() {
+        @Override
+        public void onMotionChanged(boolean moving) {
+            Handler worker = LocationHandler.this.worker;
+            if (worker != null && Looper.myLooper() != worker.getLooper())
+                worker.obtainMessage(MSG_MOTION, moving ? 1 : 0, 0).sendToTarget();
+            else
+                onMotion(moving);
+            if (chainedMotionListener != null)
+                chainedMotionListener.onMotionChanged(moving);
+        }
+    };
+
+    /**
+     * Location request is lowered while stationary and restored on motion.
+     *
+     * @param moving true if device has started moving, false if it is stationary
+     */
+    private void onMotion(boolean moving) {
+        frozen = moving ? null : lastDelivered;
+        stationary = !moving;
+        if (moving && adaptive && tier == Tier.IDLE)
+            tier = candidate = Tier.CITY;
+        if (debug)
+            log(moving ? "device started moving" : "device is stationary");
+        requestUpdates();
+    }
+
+    /**
+     * Handles the messages of the worker thread and of the main thread in background mode
+     */
+    private final Handler.Callback messages = new Handler.Callback() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(Message message) {
+            switch (message.what) {
+                case MSG_BATCH:
+                    onLocations((List<Location>) message.obj, message.arg1 != 0);
+                    return true;
+                case MSG_MOTION:
+                    onMotion(message.arg1 != 0);
+                    return true;
+                case MSG_LOCATION:
+                    onLocationChanged((Location) message.obj);
+                    return true;
+                case MSG_DELIVER:
+                    // dropped if posted by the worker while it was being stopped
+                    if (!stopped && mLocationListener != null)
+                        mLocationListener.onLocationChanged((Location) message.obj);
+                    return true;
             }
-        }, 3000);
+            return false;
+        }
+    };
+
+    /**
+     * @return looper on which location updates are received, main looper unless in background mode
+     */
+    private Looper getLooper() {
+        return workerThread != null ? workerThread.getLooper() : Looper.getMainLooper();
+    }
+
+    /**
+     * Chooses the tier for the speed of the location, and registers the request again if tier has changed. Speed is taken from the
+     * location if it has any, otherwise it is calculated from the previous location.
+     *
+     * @param location location being delivered
+     * @param previous location delivered before, may be null
+     */
+    private void adapt(Location location, Location previous) {
+        float speed;
+        if (location.hasSpeed())
+            speed = location.getSpeed();
+        else if (previous != null && location.getTime() > previous.getTime())
+            speed = location.distanceTo(previous) * 1000f / (location.getTime() - previous.getTime());
+        else
+            return;
+
+        Tier suggested = stationary ? Tier.IDLE : tier.next(speed);
+        if (suggested == tier) {
+            candidateCount = 0;
+            return;
+        }
+        if (suggested != candidate) {
+            candidate = suggested;
+            candidateCount = 0;
+        }
+        // speeding up or parking is followed at once, slowing down should be confirmed by a few locations
+        if (++candidateCount >= TIER_CONFIRMATIONS || suggested.ordinal() > tier.ordinal() || stationary) {
+            tier = suggested;
+            candidateCount = 0;
+            if (debug)
+                log("moving to " + tier + " tier at " + speed + " m/s");
+            requestUpdates();
+        }
+    }
+
+    /**
+     * @return request according to the current settings and the motion of the device
+     */
+    private LocationRequest buildRequest() {
+        return new LocationRequest()
+                .setInterval(getInterval())
+                .setFastestInterval(getFastestInterval())
+                .setPriority(getPriority())
+                .setSmallestDisplacement(getSmallestDisplacement())
+                .setMaxWaitTime(maxWaitTime);
     }
 
     /**
-     * Method to check whether filter exists or not. In other words, it is linear searching to search in filter array
-     * that array has particular filter or not.
+     * Registers the request again after it has changed, either through the hub or directly with the fused location provider.
+     * Registering again with the same listener replaces the previous request.
+     */
+    @SuppressWarnings("MissingPermission")
+    private void requestUpdates() {
+        if (hub != null) {
+            hub.subscribe(this);
+        } else if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
+            mLocationRequest = buildRequest();
+            LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, callback, getLooper());
+        }
+    }
+
+    /**
+     * @return number of locations received by the pipeline since start or last {@code resetCounters()}
+     */
+    public long getProcessedCount() {
+        return processed;
+    }
+
+    /**
+     * @param filter one of the built-in filters
+     * @return number of locations which have been altered by the filter, i.e. replaced by the last location
+     */
+    public long getRejectionCount(Filters filter) {
+        return rejections[filter.ordinal()];
+    }
+
+    /**
+     * @return number of locations dropped by throttle or by a stage of the pipeline
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return true from {@code start()} to {@code stop()}
+     */
+    boolean isStarted() {
+        return !stopped;
+    }
+
+    /**
+     * Sets all the counters back to zero, for example before a new trace is replayed
+     */
+    public void resetCounters() {
+        processed = dropped = 0;
+        Arrays.fill(rejections, 0);
+    }
+
+    /**
+     * Switches this handler to replay a trace, or back to live locations. Filters of a replay compare every location with the
+     * one accepted before it in the trace, at once, and the shared {@code lastLocation} and the store are left alone. Stages
+     * and throttle are reset on both ways, and so is the last delivered location, so that nothing of the trace is left behind.
+     *
+     * @param replaying true before the first location of a trace, false after the last one
+     */
+    void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+        replayLast = null;
+        lastDelivered = frozen = null;
+        lastDeliveredTime = 0;
+        for (LocationFilter stage : stages)
+            stage.reset();
+    }
+
+    /**
+     * Lower value of priority constant is stricter, so while stationary it is raised to at least PRIORITY_LOW_POWER.
+     */
+    int getPriority() {
+        int priority = adaptive ? tier.priority : this.priority;
+        return stationary ? Math.max(priority, LocationRequest.PRIORITY_LOW_POWER) : priority;
+    }
+
+    long getInterval() {
+        long interval = adaptive ? tier.interval : this.interval;
+        return stationary ? Math.max(interval, STATIONARY_INTERVAL) : interval;
+    }
+
+    long getFastestInterval() {
+        long fastestInterval = adaptive ? tier.fastestInterval : this.fastestInterval;
+        return stationary ? Math.max(fastestInterval, STATIONARY_INTERVAL) : fastestInterval;
+    }
+
+    long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    float getSmallestDisplacement() {
+        return adaptive ? tier.displacement : 0;
+    }
+
+    Context getContext() {
+        return context;
+    }
+
+    /**
+     * Method to check whether filter exists or not, in the bit mask compiled by {@code setFilters()}.
      *
      * @param filter filter to search
      * @return true if exists otherwise false
      */
     private boolean has(Filters filter) {
-        for (Filters f : filters)
-            if (f.equals(filter))
-                return true;
-        return false;
+        return (filters & filter.mask) != 0;
     }
 
     @Override
@@ -448,7 +1227,7 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
                 // All location settings are satisfied. The client can
                 // initialize location requests here.
                 if (mGoogleApiClient.isConnected())
-                    LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, this);
+                    LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, callback, getLooper());
                 //mLocationListener.onLocationChanged(LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient));
                 break;
             case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
@@ -460,7 +1239,7 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
                     if (context instanceof Activity)
                         status.startResolutionForResult((Activity) context, REQUEST_LOCATION);
                     else if (mGoogleApiClient.isConnected())
-                        LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, this);
+                        LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, callback, getLooper());
 
                 } catch (IntentSender.SendIntentException e) {
                     // Ignore the error.
@@ -482,15 +1261,15 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
      */
     private void log(String msg) {
         try {
-            Log.d(getClass().getSimpleName(), msg);
+            Log.d(TAG, msg);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * It's a list of all available location filters. An array of {@link Filters} has been defined as a global variable in this class
-     * to know that what filters has been demanded by the user. Each filter has its definition in the class.
+     * It's a list of all available location filters. Filters demanded by the user are kept as a bit mask of their {@code mask} in
+     * this class, to know that what filters has been demanded by the user. Each filter has its definition in the class.
      *
      * @author Mohsin Khan
      * @date 03 February 2017
@@ -529,8 +1308,87 @@ public class LocationHandler implements GoogleApiClient.ConnectionCallbacks, Goo
          */
         SPEED,
         /**
-         * Not implemented yet
+         * Accelerometer is watched by a {@link MotionDetector}. While the device is stationary, the location at which it stopped
+         * will be delivered with updated time stamp, and location will be requested at low power. Full request is restored
+         * as soon as device starts moving.
+         */
+        ACCELEROMETER;
+
+        /**
+         * Bit of the filter in the mask compiled by {@code setFilters()}
+         */
+        final int mask = 1 << ordinal();
+    }
+
+    /**
+     * To relieve locations in batches, see {@code setMaxWaitTime()}
+     */
+    public interface BatchListener {
+        /**
+         * @param locations filtered locations of a batch, oldest first. The list is reused for the next batch, so copy it
+         *                  if it is needed after this call.
+         */
+        void onLocationsChanged(List<Location> locations);
+    }
+
+    /**
+     * Quality of service used by the adaptive mode for a range of speed. Device moves to the next tier when its speed is 15% above
+     * the range of current tier, and to the previous one when it is 15% below, so a speed near the border doesn't keep switching tiers.
+     *
+     * @see #setAdaptive(boolean)
+     */
+    public enum Tier {
+        /**
+         * Below 0.5 m/s, parked or standing
+         */
+        IDLE(0, 60 * 1000, 30 * 1000, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, 10),
+        /**
+         * Below 3 m/s (about 11 km/h)
+         */
+        WALKING(0.5f, 20 * 1000, 10 * 1000, LocationRequest.PRIORITY_HIGH_ACCURACY, 15),
+        /**
+         * Below 20 m/s (72 km/h)
+         */
+        CITY(3, 5 * 1000, 3 * 1000, LocationRequest.PRIORITY_HIGH_ACCURACY, 10),
+        /**
+         * 20 m/s and above
+         */
+        HIGHWAY(20, 2 * 1000, 1000, LocationRequest.PRIORITY_HIGH_ACCURACY, 20);
+
+        /**
+         * All the tiers from the slowest, {@code values()} would copy the array for every location
          */
-        ACCELEROMETER
+        private static final Tier[] TIERS = values();
+
+        /**
+         * Lowest speed of the tier in m/s
+         */
+        final float minSpeed;
+        final long interval;
+        final long fastestInterval;
+        final int priority;
+        /**
+         * Smallest displacement in meters
+         */
+        final float displacement;
+
+        Tier(float minSpeed, long interval, long fastestInterval, int priority, float displacement) {
+            this.minSpeed = minSpeed;
+            this.interval = interval;
+            this.fastestInterval = fastestInterval;
+            this.priority = priority;
+            this.displacement = displacement;
+        }
+
+        /**
+         * @param speed in m/s
+         * @return tier for the speed, staying in this tier within the hysteresis band
+         */
+        Tier next(float speed) {
+            int i = ordinal();
+            while (i + 1 < TIERS.length && speed > TIERS[i + 1].minSpeed * 1.15f) i++;
+            while (i > 0 && speed < TIERS[i].minSpeed * 0.85f) i--;
+            return TIERS[i];
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,275 @@
+package in.teramatrix.utilities.service;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.IntentSender;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.LocationSettingsRequest;
+import com.google.android.gms.location.LocationSettingsResult;
+import com.google.android.gms.location.LocationSettingsStatusCodes;
+
+import java.util.List;
+
+/**
+ * A single fused location subscription shared by all the {@link LocationHandler}s of the app which are marked as shared. Every screen
+ * or feature that wants location can have its own {@link LocationHandler} with its own filters, listeners and throttle, but only
+ * this hub talks to the <a href="https://developers.google.com/android/reference/com/google/android/gms/location/FusedLocationProviderApi">
+ * Fused Location API</a>. So several features of the app don't open competing GPS sessions.
+ * <p>
+ * Hub requests location updates at the strictest priority, the shortest interval and the smallest displacement requested by any of its
+ * subscribers (and the shortest maximum wait time, so a batched subscriber never delays the others), and fans out every location
+ * to all of them. Whenever a subscriber joins or leaves, the request is re-calculated and re-registered only if it has
+ * changed. When the last subscriber leaves, location updates are removed and {@link GoogleApiClient} is disconnected.
+ * A suspended connection is connected again. If the connection fails, every subscriber is told as if it had its own client and
+ * the hub starts afresh, so the next subscriber connects again.
+ * <pre>
+ * new LocationHandler(this).setShared(true).setFilters(Filters.ACCURACY).setLocationListener(listener).start();
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LocationHub implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener,
+        ResultCallback<LocationSettingsResult> {
+    /**
+     * The only instance of this class in the process
+     */
+    private static LocationHub instance;
+
+    /**
+     * Application's context, to initialize {@link GoogleApiClient} without leaking any {@link Activity}
+     */
+    private final Context context;
+
+    /**
+     * The main entry point for Google Play services integration, shared by all the subscribers
+     */
+    private GoogleApiClient mGoogleApiClient;
+
+    /**
+     * Request currently registered with the fused location provider, null if none
+     */
+    private LocationRequest mLocationRequest;
+
+    /**
+     * All the shared handlers. Array is replaced on every subscribe / unsubscribe so that it can be iterated on every
+     * location update without any lock.
+     */
+    private volatile LocationHandler[] subscribers = new LocationHandler[0];
+
+    /**
+     * Merged quality of service of all the subscribers
+     */
+    private int priority;
+    private long interval;
+    private long fastestInterval;
+    private float displacement;
+    private long maxWaitTime;
+
+    private LocationHub(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    /**
+     * @param context any context, only application's context will be retained
+     * @return the only instance of the hub
+     */
+    public static synchronized LocationHub getInstance(Context context) {
+        if (instance == null)
+            instance = new LocationHub(context);
+        return instance;
+    }
+
+    /**
+     * A handler will be subscribed automatically by its {@code start()} method if it is shared. Subscribing the same
+     * handler again will re-calculate and re-register the request, for example after changing its priority or after
+     * user has turned on location settings.
+     *
+     * @param handler to be fed with locations
+     */
+    public synchronized void subscribe(LocationHandler handler) {
+        boolean exists = false;
+        for (LocationHandler subscriber : subscribers)
+            if (subscriber == handler) exists = true;
+
+        if (!exists) {
+            LocationHandler[] updated = new LocationHandler[subscribers.length + 1];
+            System.arraycopy(subscribers, 0, updated, 0, subscribers.length);
+            updated[subscribers.length] = handler;
+            subscribers = updated;
+        }
+        update(exists);
+    }
+
+    /**
+     * A handler will be unsubscribed automatically by its {@code stop()} method.
+     *
+     * @param handler not to be fed anymore
+     */
+    public synchronized void unsubscribe(LocationHandler handler) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == handler) {
+                LocationHandler[] updated = new LocationHandler[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, updated, 0, i);
+                System.arraycopy(subscribers, i + 1, updated, i, subscribers.length - i - 1);
+                subscribers = updated;
+                break;
+            }
+        }
+        update(false);
+    }
+
+    /**
+     * @return number of handlers currently subscribed
+     */
+    public int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    /**
+     * Method will merge the requests of all the subscribers and will connect, re-register or disconnect accordingly.
+     * Lower value of priority constant is stricter, e.g. PRIORITY_HIGH_ACCURACY is less than PRIORITY_LOW_POWER.
+     *
+     * @param force true to register the request again even if it has not changed
+     */
+    private void update(boolean force) {
+        if (subscribers.length == 0) {
+            disconnect();
+            return;
+        }
+
+        int priority = Integer.MAX_VALUE;
+        long interval = Long.MAX_VALUE;
+        long fastestInterval = Long.MAX_VALUE;
+        float displacement = Float.MAX_VALUE;
+        long maxWaitTime = Long.MAX_VALUE;
+        for (LocationHandler subscriber : subscribers) {
+            priority = Math.min(priority, subscriber.getPriority());
+            interval = Math.min(interval, subscriber.getInterval());
+            fastestInterval = Math.min(fastestInterval, subscriber.getFastestInterval());
+            displacement = Math.min(displacement, subscriber.getSmallestDisplacement());
+            maxWaitTime = Math.min(maxWaitTime, subscriber.getMaxWaitTime());
+        }
+
+        boolean changed = mLocationRequest == null || priority != this.priority || interval != this.interval
+                || fastestInterval != this.fastestInterval || displacement != this.displacement || maxWaitTime != this.maxWaitTime;
+        this.priority = priority;
+        this.interval = interval;
+        this.fastestInterval = fastestInterval;
+        this.displacement = displacement;
+        this.maxWaitTime = maxWaitTime;
+        mLocationRequest = new LocationRequest()
+                .setInterval(interval)
+                .setFastestInterval(fastestInterval)
+                .setPriority(priority)
+                .setSmallestDisplacement(displacement)
+                .setMaxWaitTime(maxWaitTime);
+
+        if (mGoogleApiClient == null) {
+            mGoogleApiClient = new GoogleApiClient.Builder(context)
+                    .addApi(LocationServices.API)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .build();
+            mGoogleApiClient.connect();
+        } else if ((changed || force) && mGoogleApiClient.isConnected()) {
+            // registering again with the same listener replaces the previous request
+            requestUpdates();
+        }
+    }
+
+    private void disconnect() {
+        if (mGoogleApiClient != null && (mGoogleApiClient.isConnecting() || mGoogleApiClient.isConnected())) {
+            if (mGoogleApiClient.isConnected())
+                LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, callback);
+            mGoogleApiClient.disconnect();
+        }
+        mGoogleApiClient = null;
+        mLocationRequest = null;
+    }
+
+    @SuppressWarnings("MissingPermission")
+    private void requestUpdates() {
+        if (mGoogleApiClient != null && mGoogleApiClient.isConnected() && mLocationRequest != null)
+            LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, callback, Looper.getMainLooper());
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle bundle) {
+        if (mLocationRequest == null) return;
+        PendingResult<LocationSettingsResult> pendingResult = LocationServices.SettingsApi.checkLocationSettings(mGoogleApiClient,
+                new LocationSettingsRequest.Builder().addLocationRequest(mLocationRequest).build());
+        pendingResult.setResultCallback(this);
+    }
+
+    @Override
+    public synchronized void onConnectionSuspended(int i) {
+        // updates are registered again on onConnected()
+        if (mGoogleApiClient != null)
+            mGoogleApiClient.connect();
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(@NonNull ConnectionResult result) {
+        // subscribers are dropped first, so that none of them connects again while the others are being stopped
+        LocationHandler[] subscribers = this.subscribers;
+        this.subscribers = new LocationHandler[0];
+        disconnect();
+        for (LocationHandler subscriber : subscribers)
+            subscriber.onConnectionFailed(result);
+    }
+
+    @Override
+    public synchronized void onResult(@NonNull LocationSettingsResult locationSettingsResult) {
+        final Status status = locationSettingsResult.getStatus();
+        switch (status.getStatusCode()) {
+            case LocationSettingsStatusCodes.SUCCESS:
+                requestUpdates();
+                break;
+            case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
+                // hub holds application's context, so the dialog is shown on the activity of any subscriber
+                Activity activity = null;
+                for (LocationHandler subscriber : subscribers)
+                    if (subscriber.getContext() instanceof Activity)
+                        activity = (Activity) subscriber.getContext();
+                try {
+                    if (activity != null)
+                        status.startResolutionForResult(activity, LocationHandler.REQUEST_LOCATION);
+                    else
+                        requestUpdates();
+                } catch (IntentSender.SendIntentException e) {
+                    // Ignore the error.
+                }
+                break;
+            case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
+                // Location settings are not satisfied. However, we have no way
+                // to fix the settings so we won't show the dialog.
+                break;
+        }
+    }
+
+    /**
+     * Every location or batch of locations is fanned out to all the subscribers
+     */
+    private final LocationCallback callback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            List<Location> locations = result.getLocations();
+            LocationHandler[] subscribers = LocationHub.this.subscribers;
+            // same locations are shared by all the subscribers, a handler copies a location only if its filters alter it
+            for (LocationHandler subscriber : subscribers)
+                subscriber.onLocations(locations, false);
+        }
+    };
+}
@@ -0,0 +1,131 @@
+package in.teramatrix.utilities.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Bundle;
+
+/**
+ * Keeps the last filtered location on the disk, so that on the next launch it can be shown at once, long before
+ * {@link com.google.android.gms.common.api.GoogleApiClient} connects and the first fresh location arrives.
+ * <p>
+ * Location is saved in {@link SharedPreferences} with {@code apply()}, which writes to the disk in background, and not more often
+ * than once in {@code interval}. A restored location is tagged as stale in its extras, use {@code isStale()} to know whether a
+ * location is a fresh one. {@link LocationHandler} does all of it by itself when it is marked as persistent.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LocationStore {
+    /**
+     * Boolean extra set in a restored location
+     */
+    public static final String EXTRA_STALE = "in.teramatrix.utilities.STALE";
+
+    private static final String PREFERENCES = "in.teramatrix.utilities.location";
+    private static final String KEY_LATITUDE = "latitude", KEY_LONGITUDE = "longitude", KEY_TIME = "time",
+            KEY_ACCURACY = "accuracy", KEY_SPEED = "speed", KEY_BEARING = "bearing", KEY_PROVIDER = "provider";
+
+    private final SharedPreferences preferences;
+
+    /**
+     * Minimum time in milliseconds between two saved locations
+     */
+    private long interval = 30 * 1000;
+
+    /**
+     * Time of the last saved location
+     */
+    private long savedTime;
+
+    /**
+     * @param context any context, to open {@link SharedPreferences}
+     */
+    public LocationStore(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param interval minimum time in milliseconds between two saved locations
+     * @return current instance of this class
+     */
+    public LocationStore setInterval(long interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Saves the location if {@code interval} has passed since the last saved one.
+     *
+     * @param location latest filtered location
+     */
+    public void save(Location location) {
+        if (location != null && Math.abs(location.getTime() - savedTime) >= interval)
+            saveNow(location);
+    }
+
+    /**
+     * Saves the location at once, for example when location updates are being stopped.
+     *
+     * @param location latest filtered location
+     */
+    public void saveNow(Location location) {
+        if (location == null || isStale(location))
+            return;
+        savedTime = location.getTime();
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong(KEY_LATITUDE, Double.doubleToRawLongBits(location.getLatitude()))
+                .putLong(KEY_LONGITUDE, Double.doubleToRawLongBits(location.getLongitude()))
+                .putLong(KEY_TIME, location.getTime())
+                .putString(KEY_PROVIDER, location.getProvider());
+        // a value the location doesn't have is removed, so that it is not restored as a zero
+        if (location.hasAccuracy())
+            editor.putFloat(KEY_ACCURACY, location.getAccuracy());
+        else
+            editor.remove(KEY_ACCURACY);
+        if (location.hasSpeed())
+            editor.putFloat(KEY_SPEED, location.getSpeed());
+        else
+            editor.remove(KEY_SPEED);
+        if (location.hasBearing())
+            editor.putFloat(KEY_BEARING, location.getBearing());
+        else
+            editor.remove(KEY_BEARING);
+        editor.apply();
+    }
+
+    /**
+     * @return last saved location tagged as stale, with accuracy, speed and bearing only if it had them, or null if nothing has
+     * been saved yet
+     */
+    public Location restore() {
+        if (!preferences.contains(KEY_TIME))
+            return null;
+        Location location = new Location(preferences.getString(KEY_PROVIDER, "fused"));
+        location.setLatitude(Double.longBitsToDouble(preferences.getLong(KEY_LATITUDE, 0)));
+        location.setLongitude(Double.longBitsToDouble(preferences.getLong(KEY_LONGITUDE, 0)));
+        location.setTime(preferences.getLong(KEY_TIME, 0));
+        if (preferences.contains(KEY_ACCURACY))
+            location.setAccuracy(preferences.getFloat(KEY_ACCURACY, 0));
+        if (preferences.contains(KEY_SPEED))
+            location.setSpeed(preferences.getFloat(KEY_SPEED, 0));
+        if (preferences.contains(KEY_BEARING))
+            location.setBearing(preferences.getFloat(KEY_BEARING, 0));
+        Bundle extras = new Bundle();
+        extras.putBoolean(EXTRA_STALE, true);
+        location.setExtras(extras);
+        return location;
+    }
+
+    public void clear() {
+        preferences.edit().clear().apply();
+        savedTime = 0;
+    }
+
+    /**
+     * @param location any location
+     * @return true if the location has been restored from the disk rather than received from the provider
+     */
+    public static boolean isStale(Location location) {
+        Bundle extras = location.getExtras();
+        return extras != null && extras.getBoolean(EXTRA_STALE, false);
+    }
+}
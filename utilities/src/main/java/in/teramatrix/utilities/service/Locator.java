@@ -1,22 +1,16 @@
 package in.teramatrix.utilities.service;
 
-import android.animation.IntEvaluator;
-import android.animation.ValueAnimator;
-import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
-import android.graphics.Point;
 import android.location.Location;
-import android.os.Handler;
+import android.os.Build;
 import android.os.SystemClock;
 import android.view.animation.AccelerateDecelerateInterpolator;
-import android.view.animation.Interpolator;
-import android.view.animation.LinearInterpolator;
 
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
-import com.google.android.gms.maps.Projection;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
@@ -24,10 +18,8 @@ import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import in.teramatrix.utilities.R;
+import in.teramatrix.utilities.util.FrameAnimator;
 import in.teramatrix.utilities.util.GUtils;
 
 /**
@@ -99,6 +91,49 @@ public class Locator {
      */
     private int markerIcon;
 
+    /**
+     * If true, {@code locateMe()} adapts location request to the speed of the device rather than fixed 5 seconds updates
+     */
+    private boolean adaptive;
+
+    /**
+     * Marker is extrapolated from the speed and bearing of the last location until the next one arrives if it is true
+     */
+    private boolean prediction;
+
+    /**
+     * Longest time in milliseconds for which marker is extrapolated after a location, it stops there if no location arrives
+     */
+    private long maxPrediction = 10 * 1000;
+
+    /**
+     * Time in milliseconds in which the error between the predicted position and a new location is blended away
+     */
+    private long blendDuration = 1000;
+
+    /**
+     * Prediction starts from the last location, moving by the rates in degrees per millisecond. Error is the offset of the shown
+     * position from the last location at the time it arrived, which fades out in {@code blendDuration}.
+     */
+    private double anchorLatitude, anchorLongitude;
+    private double latitudeRate, longitudeRate;
+    private double errorLatitude, errorLongitude;
+
+    /**
+     * Age of the last location in milliseconds when it arrived, prediction starts that far ahead of it
+     */
+    private long age;
+
+    /**
+     * Below this speed in m/s, a location is not extrapolated as speed and bearing are mostly noise
+     */
+    private static final float MIN_PREDICTION_SPEED = 1;
+
+    /**
+     * Meters in a degree of latitude
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+
     /**
      * Default constructor of the class
      *
@@ -144,6 +179,47 @@ public class Locator {
         this.movingMarker = movingMarker;
     }
 
+    /**
+     * In prediction mode, marker keeps moving from the last location along its bearing at its speed, instead of being interpolated
+     * to the new location after it arrives. When the next location arrives, marker is moved to the path predicted from it smoothly
+     * in {@code blendDuration}, so it neither jumps nor lags behind the device. It looks smooth with sparse locations, so
+     * {@code locateMe()} requests a location every 10 seconds in this mode rather than every 5 seconds.
+     *
+     * @param prediction true to extrapolate the marker between locations
+     * @return current instance of this class
+     */
+    public Locator setPrediction(boolean prediction) {
+        this.prediction = prediction;
+        return this;
+    }
+
+    /**
+     * @param maxPrediction in milliseconds, marker stops if no location arrives in this time
+     * @return current instance of this class
+     */
+    public Locator setMaxPrediction(long maxPrediction) {
+        this.maxPrediction = maxPrediction;
+        return this;
+    }
+
+    /**
+     * @param blendDuration in milliseconds, time to correct the marker when a new location arrives
+     * @return current instance of this class
+     */
+    public Locator setBlendDuration(long blendDuration) {
+        this.blendDuration = blendDuration;
+        return this;
+    }
+
+    /**
+     * @param adaptive true to let {@code locateMe()} use adaptive mode of {@link LocationHandler}, see {@code LocationHandler.setAdaptive()}
+     * @return current instance of this class
+     */
+    public Locator setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
     /**
      * This will plot current location {@link Marker} on the {@link GoogleMap} using {@link LocationHandler}
      *
@@ -153,11 +229,17 @@ public class Locator {
     public LocationHandler locateMe(Context context) {
         locationHandler = new LocationHandler(context)
                 .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
-                .setInterval(1000 * 5)
+                .setInterval(prediction ? 1000 * 10 : 1000 * 5)
                 .setFastestInterval(1000 * 5)
+                .setAdaptive(adaptive)
+                .setPersistent(true)
                 .setLocationListener(new LocationListener() {
                     @Override
                     public void onLocationChanged(Location location) {
+                        // location saved in the last session, to show something while waiting for the first fix
+                        if (LocationStore.isStale(location) && marker == null && map != null)
+                            map.moveCamera(CameraUpdateFactory.newLatLngZoom(
+                                    new LatLng(location.getLatitude(), location.getLongitude()), 15));
                         locate(location);
                     }
                 })
@@ -188,7 +270,14 @@ public class Locator {
                                 .strokeColor(Color.parseColor(strokeColor))
                                 .strokeWidth(0.8f)
                                 .fillColor(Color.parseColor(fillColor)));
+                    if (prediction)
+                        predict(location);
                 }
+            } else if (prediction) {
+                // a location equal to the previous one still corrects the predicted position
+                predict(location);
+                if (accuracyLayer)
+                    animateCircle(circle, Math.round(location.getAccuracy()));
             } else {
                 if (!GUtils.isEqual(location, recent)) {
                     if (movingMarker) {
@@ -197,7 +286,7 @@ public class Locator {
                         marker.setPosition(latLng);
                     }
 
-                    if (rotation) {
+                    if (rotation && !LocationStore.isStale(recent)) {
                         marker.setRotation(recent.bearingTo(location));
                     }
 
@@ -207,14 +296,17 @@ public class Locator {
                     }
                 }
             }
+            // a location restored from the last session is shown faded until a fresh one arrives
+            if (marker != null)
+                marker.setAlpha(LocationStore.isStale(location) ? 0.5f : 1f);
             recent = location;
         }
         return marker;
     }
 
     /**
-     * Method will generate animation like effects by increasing/decreasing the value of {@link Circle} radius using
-     * Android's {@link Handler}.
+     * Method will generate animation like effects by increasing/decreasing the value of {@link Circle} radius on the frames of
+     * {@link FrameAnimator}.
      * One more thing to consider that here I'm checking if new radius is just one meter up/down with the existing
      * radius then this animation will not work. It will be stable in that condition.
      *
@@ -222,82 +314,15 @@ public class Locator {
      * @param r new radius value
      */
     private void animateCircle(final Circle c, final double r) {
-        c.setRadius(Math.round(c.getRadius()));
-        if (c.getRadius() != r && c.getRadius() != r - 1 && c.getRadius() != r + 1) {
-            //Calculating difference
-            final int d = (int) Math.abs(c.getRadius() - r);
-            //Calculating speed of circle resizing/scaling
-            final int s = (1000 + d) / d;
-            final Handler h = new Handler();
-            h.post(new Runnable() {
-                public void run() {
-                    c.setRadius((c.getRadius() < r) ? c.getRadius() + 1 : c.getRadius() - 1);
-                    if (c.getRadius() == r) {
-                        h.removeCallbacks(this);
-                        return;
-                    }
-                    h.postDelayed(this, s);
-                }
-            });
-        }
-    }
-
-    /**
-     * Method will generate animation like effects by increasing/decreasing the value of {@link Circle} radius using
-     * Java's {@link Timer}.
-     * One more thing to consider that here I'm checking if new radius is just one meter up/down with the existing
-     * radius then this animation will not work. It will be stable in that condition.
-     *
-     * @param cxt context to execute on main thread
-     * @param c   circle to be animated
-     * @param r   new radius value
-     */
-    private void animateCircle(final Context cxt, final Circle c, final double r) {
-        c.setRadius(Math.round(c.getRadius()));
-        if (c.getRadius() != r && c.getRadius() != r - 1 && c.getRadius() != r + 1) {
-            //Calculating difference
-            final int d = (int) Math.abs(c.getRadius() - r);
-            //Calculating speed of circle resizing
-            final int s = (1000 + d) / d;
-            final Timer t = new Timer();
-            TimerTask timerTask = new TimerTask() {
-                @Override
-                public void run() {
-                    if (cxt != null)
-                        ((Activity) cxt).runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                c.setRadius((c.getRadius() < r) ? c.getRadius() + 1 : c.getRadius() - 1);
-                                if (c.getRadius() == r) {
-                                    t.cancel();
-                                }
-                            }
-                        });
-                }
-            };
-            t.schedule(timerTask, 0, 50);
-        }
+        if (Math.abs(c.getRadius() - r) > 1)
+            FrameAnimator.getInstance().resizeCircle(c, r, 1000);
     }
 
     /**
      * @param circle circle to be animated
      */
     private void animateCircle(final Circle circle) {
-        ValueAnimator vAnimator = new ValueAnimator();
-        vAnimator.setRepeatCount(ValueAnimator.INFINITE);
-        vAnimator.setRepeatMode(ValueAnimator.RESTART);  /* PULSE */
-        vAnimator.setIntValues(0, 100);
-        vAnimator.setDuration(1000);
-        vAnimator.setEvaluator(new IntEvaluator());
-        vAnimator.setInterpolator(new AccelerateDecelerateInterpolator());
-        vAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator valueAnimator) {
-                float animatedFraction = valueAnimator.getAnimatedFraction();
-                circle.setRadius(animatedFraction * 100);
-            }
-        });
-        vAnimator.start();
+        FrameAnimator.getInstance().pulseCircle(circle, 100, 1000, new AccelerateDecelerateInterpolator());
     }
 
     /**
@@ -307,39 +332,98 @@ public class Locator {
      * @param toPosition destination
      */
     private void moveMarker(final Marker marker, final LatLng toPosition) {
-        final Handler handler = new Handler();
-        final long start = SystemClock.uptimeMillis();
-        Projection proj = map.getProjection();
-        Point startPoint = proj.toScreenLocation(marker.getPosition());
-        final LatLng startLatLng = proj.fromScreenLocation(startPoint);
-        final long duration = 1000 * 5;
-
-        final Interpolator interpolator = new LinearInterpolator();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                long elapsed = SystemClock.uptimeMillis() - start;
-                float t = interpolator.getInterpolation((float) elapsed / duration);
-                double lng = t * toPosition.longitude + (1 - t) * startLatLng.longitude;
-                double lat = t * toPosition.latitude + (1 - t) * startLatLng.latitude;
-                marker.setPosition(new LatLng(lat, lng));
-
-                if (t < 1.0) {
-                    // Post again 16ms later.
-                    handler.postDelayed(this, 16);
-                }
-            }
-        });
+        FrameAnimator.getInstance().moveMarker(marker, toPosition, 1000 * 5);
+    }
+
+    /**
+     * Starts predicting from a new location. Error between the position being shown and the location is kept to be blended away.
+     *
+     * @param location new location
+     */
+    private void predict(Location location) {
+        anchorLatitude = location.getLatitude();
+        anchorLongitude = location.getLongitude();
+        if (!LocationStore.isStale(location) && location.hasSpeed() && location.hasBearing()
+                && location.getSpeed() >= MIN_PREDICTION_SPEED) {
+            double rate = location.getSpeed() / 1000 / METERS_PER_DEGREE;
+            double bearing = Math.toRadians(location.getBearing());
+            latitudeRate = rate * Math.cos(bearing);
+            longitudeRate = rate * Math.sin(bearing) / Math.max(0.01, Math.cos(Math.toRadians(anchorLatitude)));
+            if (rotation)
+                marker.setRotation(location.getBearing());
+        } else {
+            latitudeRate = longitudeRate = 0;
+        }
+
+        // a batched or late location is already old, the vehicle has moved on since it was taken
+        age = Math.max(0, Math.min(getAge(location), maxPrediction));
+        LatLng shown = marker.getPosition();
+        errorLatitude = shown.latitude - (anchorLatitude + latitudeRate * age);
+        errorLongitude = shown.longitude - (anchorLongitude + longitudeRate * age);
+        if (errorLongitude >= 180)
+            errorLongitude -= 360;
+        else if (errorLongitude < -180)
+            errorLongitude += 360;
+        // replaces a running move of the marker, or restarts the running prediction from the new location
+        FrameAnimator.getInstance().start(marker, FrameAnimator.POSITION, predictor);
+    }
+
+    /**
+     * @return time in milliseconds since the location was taken, by the elapsed realtime clock from Jelly Bean MR1 on, which is
+     * not affected by changes of the wall clock
+     */
+    private static long getAge(Location location) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && location.getElapsedRealtimeNanos() > 0)
+            return (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+        return System.currentTimeMillis() - location.getTime();
     }
 
+    /**
+     * Moves the marker to the predicted position on every frame, until error is blended away and prediction has run out
+     */
+    private final FrameAnimator.Animation predictor = new FrameAnimator.Animation(0) {
+        @Override
+        protected boolean onFrame(long elapsed) {
+            if (marker == null)
+                return false;
+            long predicted = Math.min(age + elapsed, maxPrediction);
+            double latitude = anchorLatitude + latitudeRate * predicted;
+            double longitude = anchorLongitude + longitudeRate * predicted;
+            boolean blending = elapsed < blendDuration;
+            if (blending) {
+                // smooth step, so marker neither jumps nor changes speed abruptly
+                float t = (float) elapsed / blendDuration;
+                float remaining = 1 - t * t * (3 - 2 * t);
+                latitude += errorLatitude * remaining;
+                longitude += errorLongitude * remaining;
+            }
+            LatLng position = new LatLng(latitude, longitude);
+            marker.setPosition(position);
+            if (accuracyLayer && circle != null)
+                circle.setCenter(position);
+
+            boolean moving = (latitudeRate != 0 || longitudeRate != 0) && age + elapsed < maxPrediction;
+            return blending || moving;
+        }
+
+        @Override
+        protected void onUpdate(float fraction) {
+        }
+    };
+
     /**
      * To stop monitoring current location. This method will stop Location Provider that is {@link LocationHandler}
      * and will remove current location {@link  Marker} and accuracy {@link Circle}.
      */
     public void stop() {
-        if (marker != null) marker.remove();
-        if (circle != null) circle.remove();
+        if (marker != null) {
+            FrameAnimator.getInstance().cancel(marker);
+            marker.remove();
+        }
+        if (circle != null) {
+            FrameAnimator.getInstance().cancel(circle);
+            circle.remove();
+        }
         if (locationHandler != null) locationHandler.stop();
     }
 }
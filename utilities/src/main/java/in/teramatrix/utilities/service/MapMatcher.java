@@ -0,0 +1,488 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.maps.model.LatLng;
+
+import in.teramatrix.utilities.model.CoordinateArray;
+import in.teramatrix.utilities.util.GUtils;
+import in.teramatrix.utilities.util.Workers;
+import in.teramatrix.utilities.util.ZoneIndex;
+
+import java.util.Arrays;
+
+/**
+ * Snaps locations to the geometry of a route, like the one designed by {@link RouteDesigner}, so a track drawn on the map stays
+ * on the road and distance along it is not inflated by GPS drift. Matching is a hidden Markov model solved by Viterbi algorithm:
+ * candidates of a location are its projections on the segments of the route within {@code radius}, a candidate is as likely as
+ * it is close to the location, and a move from one candidate to the next is as likely as the distance along the route matches
+ * the straight distance between the two locations. So a location near a crossing or a hairpin turn is matched to the segment
+ * which makes a sensible path, rather than to the nearest one.
+ * <p>
+ * Segments are kept in a {@link ZoneIndex} of their bounding boxes grown by {@code radius}, so finding the candidates of a location
+ * doesn't depend on the length of the route. Route and index are immutable once built. For live locations, add the matcher to a
+ * running {@link LocationHandler}, every location is matched in constant time to the most likely candidate so far:
+ * <pre>
+ * MapMatcher matcher = new MapMatcher(routeDesigner.getRoute()).setMatchListener(listener);
+ * locationHandler.addLocationListener(matcher);
+ * </pre>
+ * Recorded tracks are matched as a whole with backtracking, which also corrects earlier locations by later ones, and many tracks
+ * are matched on all the cores through {@link Workers}:
+ * <pre>
+ * CoordinateArray[] matched = matcher.match(tracks);
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class MapMatcher implements LocationListener {
+    /**
+     * Radius used by default, in meters
+     */
+    public static final float DEFAULT_RADIUS = 50;
+
+    /**
+     * Only this many nearest candidates are kept for a location
+     */
+    private static final int MAX_CANDIDATES = 8;
+
+    /**
+     * Meters in a degree of latitude
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * Vertices of the route, and distance along the route in meters from the first vertex to each vertex
+     */
+    private final double[] latitudes, longitudes;
+    private final double[] along;
+
+    /**
+     * Index over the bounding boxes of the segments, segment i is from vertex i to vertex i + 1. Longitudes of the index are
+     * measured from {@code origin}, 180 degrees west of the first vertex, so that a route near 0 degree or the 180th meridian
+     * stays in one piece of the [0, 360) range of the index. A box which still crosses the end of the range is split in two
+     * zones, so zone z of the index is a box of segment {@code zoneSegment[z]}, and zones of a segment are numbered one after
+     * the other.
+     */
+    private final ZoneIndex index;
+    private final int[] zoneSegment;
+    private final double origin;
+
+    /**
+     * Locations farther than this from the route (in meters) are not matched
+     */
+    private final float radius;
+
+    /**
+     * Standard deviation of GPS noise in meters
+     */
+    private float sigma = 10;
+
+    /**
+     * Tolerance in meters for the difference between distance along the route and straight distance between two locations
+     */
+    private float beta = 20;
+
+    private MatchListener matchListener;
+
+    /**
+     * State of live matching, candidates of the previous and of the current location
+     */
+    private Candidates previous = new Candidates(), current = new Candidates();
+    private double previousLatitude, previousLongitude;
+    private int[] query;
+
+    /**
+     * Result of live matching, {@code matchedSegment} is -1 if the last location could not be matched
+     */
+    private double matchedLatitude, matchedLongitude, matchedAlong;
+    private int matchedSegment = -1;
+
+    /**
+     * @param route points of the route, at least two
+     */
+    public MapMatcher(CoordinateArray route) {
+        this(route, DEFAULT_RADIUS);
+    }
+
+    /**
+     * @param route  points of the route, at least two
+     * @param radius in meters, locations farther than this from the route are not matched
+     */
+    public MapMatcher(CoordinateArray route, float radius) {
+        if (route == null || route.size() < 2)
+            throw new IllegalArgumentException("Route should have at least two points");
+
+        this.radius = radius;
+        int count = route.size();
+        latitudes = route.getLatitudes();
+        longitudes = route.getLongitudes();
+        along = new double[count];
+        for (int i = 1; i < count; i++)
+            along[i] = along[i - 1] + GUtils.getDistance(latitudes[i - 1], longitudes[i - 1], latitudes[i], longitudes[i]) * 1000;
+
+        int segments = count - 1;
+        double[] minLats = new double[segments * 2], maxLats = new double[segments * 2];
+        double[] minLngs = new double[segments * 2], maxLngs = new double[segments * 2];
+        int[] zoneSegment = new int[segments * 2];
+        int zones = 0;
+        origin = longitudes[0] - 180;
+        for (int i = 0; i < segments; i++) {
+            double latitudeMargin = radius / METERS_PER_DEGREE;
+            double longitudeMargin = latitudeMargin / Math.max(0.01,
+                    Math.cos(Math.toRadians(Math.max(Math.abs(latitudes[i]), Math.abs(latitudes[i + 1])))));
+            // west end and width of the box, the shorter way between the two vertices
+            double delta = wrap(longitudes[i + 1] - longitudes[i]);
+            double west = frame(longitudes[i] + Math.min(0, delta) - longitudeMargin);
+            double width = Math.min(Math.abs(delta) + 2 * longitudeMargin, Math.nextAfter(360, 0));
+            double minLat = Math.min(latitudes[i], latitudes[i + 1]) - latitudeMargin;
+            double maxLat = Math.max(latitudes[i], latitudes[i + 1]) + latitudeMargin;
+
+            minLats[zones] = minLat;
+            maxLats[zones] = maxLat;
+            minLngs[zones] = west;
+            maxLngs[zones] = Math.min(west + width, Math.nextAfter(360, 0));
+            zoneSegment[zones++] = i;
+            if (west + width >= 360) {
+                // rest of the box is at the other end of the range
+                minLats[zones] = minLat;
+                maxLats[zones] = maxLat;
+                minLngs[zones] = 0;
+                maxLngs[zones] = west + width - 360;
+                zoneSegment[zones++] = i;
+            }
+        }
+        index = new ZoneIndex(Arrays.copyOf(minLats, zones), Arrays.copyOf(maxLats, zones),
+                Arrays.copyOf(minLngs, zones), Arrays.copyOf(maxLngs, zones));
+        this.zoneSegment = Arrays.copyOf(zoneSegment, zones);
+    }
+
+    /**
+     * @param sigma in meters, standard deviation of GPS noise. A larger value lets farther candidates compete with the nearest one.
+     * @return current instance of this class
+     */
+    public MapMatcher setSigma(float sigma) {
+        this.sigma = sigma;
+        return this;
+    }
+
+    /**
+     * @param beta in meters, tolerance for the detour along the route between two locations. A smaller value prefers straight paths.
+     * @return current instance of this class
+     */
+    public MapMatcher setBeta(float beta) {
+        this.beta = beta;
+        return this;
+    }
+
+    /**
+     * @param matchListener to be notified of every matched location
+     * @return current instance of this class
+     */
+    public MapMatcher setMatchListener(MatchListener matchListener) {
+        this.matchListener = matchListener;
+        return this;
+    }
+
+    /**
+     * @return total length of the route in meters
+     */
+    public double getLength() {
+        return along[along.length - 1];
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        if (location == null)
+            return;
+        boolean matched;
+        double latitude, longitude, distance;
+        synchronized (this) {
+            matched = match(location.getLatitude(), location.getLongitude());
+            latitude = matchedLatitude;
+            longitude = matchedLongitude;
+            distance = matchedAlong;
+        }
+        if (matchListener != null)
+            matchListener.onLocationMatched(location, matched ? new LatLng(latitude, longitude) : null, distance);
+    }
+
+    /**
+     * Matches the next live location. Only the scores of the candidates of the previous location are kept, and the most likely
+     * candidate of this location is taken at once. If the location is off the route, the chain starts again from the next one.
+     *
+     * @param latitude  of the location
+     * @param longitude of the location
+     * @return true if matched, read the result by the getters
+     */
+    public synchronized boolean match(double latitude, double longitude) {
+        if (query == null)
+            query = new int[index.getMaxCandidates()];
+        findCandidates(latitude, longitude, current, query);
+        if (current.count == 0) {
+            previous.count = 0;
+            matchedSegment = -1;
+            return false;
+        }
+
+        step(previous, previousLatitude, previousLongitude, current, latitude, longitude, null);
+        int best = current.best();
+        matchedLatitude = current.latitude[best];
+        matchedLongitude = current.longitude[best];
+        matchedAlong = current.along[best];
+        matchedSegment = current.segment[best];
+
+        Candidates swap = previous;
+        previous = current;
+        current = swap;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        return true;
+    }
+
+    /**
+     * Forgets the live locations, the next one will start a new chain
+     */
+    public synchronized void reset() {
+        previous.count = 0;
+        matchedSegment = -1;
+    }
+
+    /**
+     * @return true if the last live location was matched
+     */
+    public synchronized boolean isMatched() {
+        return matchedSegment >= 0;
+    }
+
+    public synchronized double getLatitude() {
+        return matchedLatitude;
+    }
+
+    public synchronized double getLongitude() {
+        return matchedLongitude;
+    }
+
+    /**
+     * @return distance along the route in meters from its start to the last matched location
+     */
+    public synchronized double getDistance() {
+        return matchedAlong;
+    }
+
+    /**
+     * @return index of the segment of the last matched location, segment i is from point i to point i + 1 of the route
+     */
+    public synchronized int getSegment() {
+        return matchedSegment;
+    }
+
+    /**
+     * Matches a recorded track as a whole. Points off the route are kept as they are and split the track into runs, each run is
+     * solved separately. It doesn't touch the state of live matching, so it can be called from any thread at the same time.
+     *
+     * @param track points of a track, oldest first
+     * @return matched points, one for every point of the track
+     */
+    public CoordinateArray match(CoordinateArray track) {
+        int count = track.size();
+        CoordinateArray matched = new CoordinateArray(count);
+        int[] query = new int[index.getMaxCandidates()];
+        // candidates of all the points of the current run, and back pointers to the best candidate of the previous point
+        Candidates[] layers = new Candidates[count];
+        int[][] back = new int[count][];
+        int runStart = 0;
+        for (int i = 0; i <= count; i++) {
+            Candidates layer = null;
+            if (i < count) {
+                layer = new Candidates();
+                findCandidates(track.getLatitude(i), track.getLongitude(i), layer, query);
+            }
+            if (layer == null || layer.count == 0) {
+                // run is over, backtrack it
+                if (i > runStart) {
+                    int best = layers[i - 1].best();
+                    for (int j = i - 1; j >= runStart; j--) {
+                        layers[j].selected = best;
+                        best = back[j][best];
+                    }
+                    for (int j = runStart; j < i; j++) {
+                        matched.add(layers[j].latitude[layers[j].selected], layers[j].longitude[layers[j].selected]);
+                        layers[j] = null;
+                    }
+                }
+                if (layer != null)
+                    matched.addE7(track.getLatitudeE7(i), track.getLongitudeE7(i));
+                runStart = i + 1;
+                continue;
+            }
+
+            back[i] = new int[layer.count];
+            if (i > runStart)
+                step(layers[i - 1], track.getLatitude(i - 1), track.getLongitude(i - 1),
+                        layer, track.getLatitude(i), track.getLongitude(i), back[i]);
+            else
+                step(null, 0, 0, layer, 0, 0, back[i]);
+            layers[i] = layer;
+        }
+        return matched;
+    }
+
+    /**
+     * Matches many recorded tracks on all the cores.
+     *
+     * @param tracks points of the tracks, oldest first
+     * @return matched points of every track, in the same order
+     */
+    public CoordinateArray[] match(final CoordinateArray[] tracks) {
+        final CoordinateArray[] matched = new CoordinateArray[tracks.length];
+        Workers.forRange(tracks.length, 1, new Workers.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    matched[i] = match(tracks[i]);
+            }
+        });
+        return matched;
+    }
+
+    /**
+     * One step of Viterbi algorithm, scores of the candidates of this location from the scores of the previous one.
+     *
+     * @param previous candidates of the previous location, null or empty to start a new chain
+     * @param current  candidates of this location
+     * @param back     to be filled with the best previous candidate of every current candidate, may be null
+     */
+    private void step(Candidates previous, double previousLatitude, double previousLongitude,
+                      Candidates current, double latitude, double longitude, int[] back) {
+        boolean chained = previous != null && previous.count > 0;
+        double straight = chained ? GUtils.getDistance(previousLatitude, previousLongitude, latitude, longitude) * 1000 : 0;
+        double max = -Double.MAX_VALUE;
+        for (int b = 0; b < current.count; b++) {
+            double normalized = current.distance[b] / sigma;
+            double score = -0.5 * normalized * normalized;
+            if (chained) {
+                double best = -Double.MAX_VALUE;
+                int from = 0;
+                for (int a = 0; a < previous.count; a++) {
+                    // moving backwards along the route makes the detour negative, so it is unlikely
+                    double detour = current.along[b] - previous.along[a] - straight;
+                    double transition = previous.score[a] - Math.abs(detour) / beta;
+                    if (transition > best) {
+                        best = transition;
+                        from = a;
+                    }
+                }
+                score += best;
+                if (back != null)
+                    back[b] = from;
+            }
+            current.score[b] = score;
+            max = Math.max(max, score);
+        }
+        // scores are kept relative to the best one, so they don't drift away on a long chain
+        for (int b = 0; b < current.count; b++)
+            current.score[b] -= max;
+    }
+
+    /**
+     * Projects the location on the segments found in the index, and keeps the nearest {@code MAX_CANDIDATES} within the radius.
+     */
+    private void findCandidates(double latitude, double longitude, Candidates candidates, int[] query) {
+        candidates.count = 0;
+        int found = index.query(latitude, frame(longitude), query);
+        for (int k = 0; k < found; k++) {
+            int i = zoneSegment[query[k]];
+            // both halves of a split box may be found in the same cell, they are next to each other
+            if (k > 0 && zoneSegment[query[k - 1]] == i)
+                continue;
+            double latA = latitudes[i], lngA = longitudes[i];
+            double scale = Math.cos(Math.toRadians(latA)) * METERS_PER_DEGREE;
+            double bx = wrap(longitudes[i + 1] - lngA) * scale;
+            double by = (latitudes[i + 1] - latA) * METERS_PER_DEGREE;
+            double px = wrap(longitude - lngA) * scale;
+            double py = (latitude - latA) * METERS_PER_DEGREE;
+            double length = bx * bx + by * by;
+            double t = length > 0 ? Math.max(0, Math.min(1, (px * bx + py * by) / length)) : 0;
+            double dx = px - t * bx, dy = py - t * by;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance > radius)
+                continue;
+
+            // insertion into the candidates sorted by distance
+            int slot;
+            if (candidates.count < MAX_CANDIDATES)
+                slot = candidates.count++;
+            else if (distance < candidates.distance[MAX_CANDIDATES - 1])
+                slot = MAX_CANDIDATES - 1;
+            else
+                continue;
+            while (slot > 0 && candidates.distance[slot - 1] > distance) {
+                candidates.copy(slot - 1, slot);
+                slot--;
+            }
+            candidates.segment[slot] = i;
+            candidates.latitude[slot] = latA + t * (latitudes[i + 1] - latA);
+            candidates.longitude[slot] = wrap(lngA + t * wrap(longitudes[i + 1] - lngA));
+            candidates.along[slot] = along[i] + t * (along[i + 1] - along[i]);
+            candidates.distance[slot] = distance;
+        }
+    }
+
+    /**
+     * @return longitude or difference of longitudes in the range of [-180, 180)
+     */
+    private static double wrap(double longitude) {
+        return longitude >= 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+    }
+
+    /**
+     * @return longitude measured eastwards from {@code origin}, in the range of [0, 360) as required by {@link ZoneIndex}
+     */
+    private double frame(double longitude) {
+        double x = (longitude - origin) % 360;
+        return x < 0 ? Math.min(x + 360, Math.nextAfter(360, 0)) : x;
+    }
+
+    /**
+     * Candidates of a single location in parallel arrays
+     */
+    private static final class Candidates {
+        final int[] segment = new int[MAX_CANDIDATES];
+        final double[] latitude = new double[MAX_CANDIDATES];
+        final double[] longitude = new double[MAX_CANDIDATES];
+        final double[] along = new double[MAX_CANDIDATES];
+        final double[] distance = new double[MAX_CANDIDATES];
+        final double[] score = new double[MAX_CANDIDATES];
+        int count;
+        int selected;
+
+        void copy(int from, int to) {
+            segment[to] = segment[from];
+            latitude[to] = latitude[from];
+            longitude[to] = longitude[from];
+            along[to] = along[from];
+            distance[to] = distance[from];
+        }
+
+        int best() {
+            int best = 0;
+            for (int i = 1; i < count; i++)
+                if (score[i] > score[best])
+                    best = i;
+            return best;
+        }
+    }
+
+    /**
+     * To be notified of every live location matched to the route
+     */
+    public interface MatchListener {
+        /**
+         * @param location original location
+         * @param matched  position of the location on the route, null if it is farther than {@code radius} from the route
+         * @param distance distance along the route in meters from its start to the matched position, or to the last matched
+         *                 position if this one is not matched
+         */
+        void onLocationMatched(Location location, LatLng matched, double distance);
+    }
+}
@@ -0,0 +1,377 @@
+package in.teramatrix.utilities.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import in.teramatrix.utilities.model.CoordinateArray;
+import in.teramatrix.utilities.model.Place;
+
+/**
+ * Groups many points into a marker per cell of a screen-space grid, so the map doesn't have to render a marker per point when
+ * zoomed out. Points are projected to Web Mercator once, when they are set, and on every camera idle the points of the viewport are
+ * bucketed into cells of {@code gridSize} pixels at the current zoom level on a background thread. Markers are then changed by a
+ * diff on the main thread: a cell which is still there with the same points keeps its marker, only the cells which appeared or
+ * changed get a new one, so panning at the same zoom only touches the edges of the screen.
+ * <p>
+ * From {@code maxZoom} on, every point is shown by its own marker. Positions of a {@link FleetLayer} can be clustered as well by
+ * {@code setPoints(fleet.getPositions(), null)}.
+ * <pre>
+ * MarkerClusterer clusterer = new MarkerClusterer(map).setPlaces(places);
+ * map.setOnCameraIdleListener(clusterer);
+ * </pre>
+ * and in the marker click listener of the map, {@code return clusterer.expand(marker);} zooms into a clicked cluster.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class MarkerClusterer implements GoogleMap.OnCameraIdleListener {
+    /**
+     * Size of the world in pixels at zoom level 0
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * A single background thread for all the clusterers
+     */
+    private static HandlerThread workerThread;
+    private static Handler worker;
+
+    private final GoogleMap map;
+    private final Handler main = new Handler(Looper.getMainLooper());
+
+    /**
+     * Size of a cell in screen pixels
+     */
+    private int gridSize = 100;
+
+    /**
+     * From this zoom level on, points are not clustered
+     */
+    private int maxZoom = 17;
+
+    private IconProvider iconProvider;
+
+    /**
+     * Points being clustered, replaced as a whole by {@code setPoints()}
+     */
+    private volatile Points points = new Points(new CoordinateArray(), null);
+
+    /**
+     * Incremented on every request on the main thread, so the result of an outdated request is thrown away
+     */
+    private int generation;
+
+    /**
+     * Markers being shown, by the key of their cell, and zoom level of their grid
+     */
+    private final HashMap<Long, Marker> shown = new HashMap<>();
+    private int shownZoom = -1;
+
+    /**
+     * @param map on which the points will be shown
+     */
+    public MarkerClusterer(GoogleMap map) {
+        this.map = map;
+    }
+
+    /**
+     * @param gridSize in pixels, points in a square of this size on the screen are shown by a single marker
+     * @return current instance of this class
+     */
+    public MarkerClusterer setGridSize(int gridSize) {
+        this.gridSize = gridSize;
+        return this;
+    }
+
+    /**
+     * @param maxZoom zoom level from which every point is shown by its own marker
+     * @return current instance of this class
+     */
+    public MarkerClusterer setMaxZoom(int maxZoom) {
+        this.maxZoom = maxZoom;
+        return this;
+    }
+
+    /**
+     * @param iconProvider to draw icons of the clusters, a default marker with the number of points as title is used otherwise
+     * @return current instance of this class
+     */
+    public MarkerClusterer setIconProvider(IconProvider iconProvider) {
+        this.iconProvider = iconProvider;
+        return this;
+    }
+
+    /**
+     * Replaces the points, they are projected on the background thread and markers are refreshed. To be called on the main thread.
+     *
+     * @param points points to be clustered
+     * @param titles title of each point shown by its own marker, may be null
+     * @return current instance of this class
+     */
+    public MarkerClusterer setPoints(final CoordinateArray points, final String[] titles) {
+        // results of the old points still being clustered are thrown away
+        generation++;
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                MarkerClusterer.this.points = new Points(points, titles);
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // same cells may now hold other points
+                        shownZoom = -1;
+                        onCameraIdle();
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces the points by the places found by {@link PlacesExplorer}, names of the places are used as titles.
+     *
+     * @param places places to be clustered
+     * @return current instance of this class
+     */
+    public MarkerClusterer setPlaces(List<Place> places) {
+        CoordinateArray points = new CoordinateArray(places.size());
+        String[] titles = new String[places.size()];
+        for (int i = 0; i < places.size(); i++) {
+            points.add(places.get(i).getLocation());
+            titles[i] = places.get(i).getName();
+        }
+        return setPoints(points, titles);
+    }
+
+    /**
+     * Clusters the points of the viewport on the background thread, and updates the markers when it is done.
+     */
+    @Override
+    public void onCameraIdle() {
+        CameraPosition camera = map.getCameraPosition();
+        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        final int zoom = (int) camera.zoom;
+        final int request = ++generation;
+        final Points points = this.points;
+        final int gridSize = this.gridSize;
+        final boolean clustered = zoom < maxZoom;
+        final double west = bounds.southwest.longitude, east = bounds.northeast.longitude;
+        final double south = bounds.southwest.latitude, north = bounds.northeast.latitude;
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                final HashMap<Long, Cluster> clusters = cluster(points, zoom, gridSize, clustered, south, north, west, east);
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request == generation)
+                            render(clusters, zoom, points);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Zooms into the cluster shown by the marker, for example from a marker click listener.
+     *
+     * @param marker clicked marker
+     * @return true if the marker is a cluster of this clusterer
+     */
+    public boolean expand(Marker marker) {
+        Object tag = marker.getTag();
+        if (!(tag instanceof Cluster) || ((Cluster) tag).count < 2 || shown.get(((Cluster) tag).key) != marker)
+            return false;
+        map.animateCamera(CameraUpdateFactory.newLatLngZoom(marker.getPosition(), Math.min(maxZoom, shownZoom + 2)));
+        return true;
+    }
+
+    /**
+     * Removes all the markers, points are kept
+     */
+    public void clear() {
+        generation++;
+        for (Marker marker : shown.values())
+            marker.remove();
+        shown.clear();
+        shownZoom = -1;
+    }
+
+    /**
+     * @return number of markers shown at the moment
+     */
+    public int getMarkerCount() {
+        return shown.size();
+    }
+
+    /**
+     * Buckets the points of the viewport, grown by a cell on every side, into the cells of the grid. Runs on the background thread.
+     */
+    static HashMap<Long, Cluster> cluster(Points points, int zoom, int gridSize, boolean clustered,
+                                          double south, double north, double west, double east) {
+        double cells = (double) TILE_SIZE * (1L << zoom) / gridSize;
+        double margin = 1 / cells;
+        double minX = mercatorX(west) - margin, maxX = mercatorX(east) + margin;
+        double minY = mercatorY(north) - margin, maxY = mercatorY(south) + margin;
+        // viewport crosses the 180th meridian
+        boolean wraps = west > east;
+
+        HashMap<Long, Cluster> clusters = new HashMap<>();
+        for (int i = 0; i < points.x.length; i++) {
+            double x = points.x[i], y = points.y[i];
+            if (y < minY || y > maxY)
+                continue;
+            if (wraps ? x < minX && x > maxX : x < minX || x > maxX)
+                continue;
+
+            long key = clustered ? ((long) (int) (x * cells) << 32) | ((int) (y * cells) & 0xffffffffL) : -1 - i;
+            Cluster cluster = clusters.get(key);
+            if (cluster == null) {
+                cluster = new Cluster(key, i);
+                clusters.put(key, cluster);
+            }
+            cluster.add(points.latitudes[i], points.longitudes[i]);
+        }
+        return clusters;
+    }
+
+    /**
+     * Diff of the markers being shown with the new clusters, on the main thread
+     *
+     * @param points the points the clusters have been built from, which may not be the current ones any more
+     */
+    private void render(HashMap<Long, Cluster> clusters, int zoom, Points points) {
+        if (zoom != shownZoom) {
+            // every cell is different at another zoom level
+            for (Marker marker : shown.values())
+                marker.remove();
+            shown.clear();
+            shownZoom = zoom;
+        }
+
+        Iterator<Map.Entry<Long, Marker>> iterator = shown.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Marker> entry = iterator.next();
+            Cluster cluster = clusters.get(entry.getKey());
+            Cluster old = (Cluster) entry.getValue().getTag();
+            if (cluster == null || old == null || cluster.count != old.count || cluster.first != old.first) {
+                entry.getValue().remove();
+                iterator.remove();
+            }
+        }
+
+        for (Cluster cluster : clusters.values()) {
+            if (shown.containsKey(cluster.key))
+                continue;
+            MarkerOptions options = new MarkerOptions();
+            if (cluster.count == 1) {
+                options.position(new LatLng(points.latitudes[cluster.first], points.longitudes[cluster.first]));
+                if (points.titles != null && cluster.first < points.titles.length)
+                    options.title(points.titles[cluster.first]);
+            } else {
+                options.position(new LatLng(cluster.latitude / cluster.count, cluster.longitude / cluster.count))
+                        .title(String.valueOf(cluster.count))
+                        .icon(iconProvider != null ? iconProvider.getIcon(cluster.count)
+                                : BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE));
+            }
+            Marker marker = map.addMarker(options);
+            marker.setTag(cluster);
+            shown.put(cluster.key, marker);
+        }
+    }
+
+    private static synchronized Handler getWorker() {
+        if (worker == null) {
+            workerThread = new HandlerThread("MarkerClusterer-worker", Process.THREAD_PRIORITY_BACKGROUND);
+            workerThread.start();
+            worker = new Handler(workerThread.getLooper());
+        }
+        return worker;
+    }
+
+    /**
+     * @return x of the longitude in Web Mercator, from 0 to 1
+     */
+    static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * @return y of the latitude in Web Mercator, from 0 (north) to 1 (south)
+     */
+    static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * Points with their Web Mercator coordinates, immutable once built
+     */
+    static final class Points {
+        final double[] latitudes, longitudes;
+        final double[] x, y;
+        final String[] titles;
+
+        Points(CoordinateArray points, String[] titles) {
+            latitudes = points.getLatitudes();
+            longitudes = points.getLongitudes();
+            x = new double[latitudes.length];
+            y = new double[latitudes.length];
+            for (int i = 0; i < latitudes.length; i++) {
+                x[i] = Math.min(mercatorX(longitudes[i]), Math.nextAfter(1.0, 0));
+                y[i] = mercatorY(latitudes[i]);
+            }
+            this.titles = titles;
+        }
+    }
+
+    /**
+     * Points of a single cell, {@code first} is the index of its first point
+     */
+    static final class Cluster {
+        final long key;
+        final int first;
+        int count;
+        double latitude, longitude;
+
+        Cluster(long key, int first) {
+            this.key = key;
+            this.first = first;
+        }
+
+        void add(double latitude, double longitude) {
+            count++;
+            this.latitude += latitude;
+            this.longitude += longitude;
+        }
+    }
+
+    /**
+     * To draw the icon of a cluster
+     */
+    public interface IconProvider {
+        /**
+         * Called on the main thread, icons should be cached by size as creating a bitmap for every cluster is expensive.
+         *
+         * @param size number of points in the cluster
+         * @return icon of the cluster
+         */
+        BitmapDescriptor getIcon(int size);
+    }
+}
@@ -0,0 +1,211 @@
+package in.teramatrix.utilities.service;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+
+/**
+ * Tells whether the device is stationary or moving, using accelerometer only. It is used by {@link LocationHandler.Filters#ACCELEROMETER}
+ * to freeze locations and to lower the location request while a vehicle is parked, but it can be used alone as well.
+ * <p>
+ * Accelerometer is sampled at a low rate, and on KitKat and above the samples are batched in the hardware FIFO of the sensor,
+ * so the CPU is woken up only once every {@code maxReportLatency}. Magnitude of acceleration is collected in windows of two seconds.
+ * If its standard deviation stays below {@code threshold} for {@code stillTime}, the device is considered stationary, and it becomes
+ * moving again as soon as a single window crosses the threshold. Nothing is allocated per sample.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class MotionDetector implements SensorEventListener {
+    /**
+     * Length of a single window of samples in nanoseconds
+     */
+    private static final long WINDOW = 2000000000L;
+
+    private final SensorManager sensorManager;
+
+    private MotionListener motionListener;
+
+    /**
+     * Time between two samples in microseconds
+     */
+    private int samplingPeriod = 200000;
+
+    /**
+     * Maximum time in microseconds a sample may wait in the sensor's FIFO before being delivered
+     */
+    private int maxReportLatency = 10000000;
+
+    /**
+     * Standard deviation of acceleration in m/s^2 below which a window is considered still
+     */
+    private float threshold = 0.12f;
+
+    /**
+     * Time in milliseconds for which all windows should be still to consider the device stationary
+     */
+    private long stillTime = 60 * 1000;
+
+    /**
+     * Running mean and sum of squared differences of the current window (Welford's method)
+     */
+    private int count;
+    private double mean, m2;
+
+    /**
+     * Sensor timestamp of the first sample of the current window and of the first still window, in nanoseconds
+     */
+    private long windowStart, stillSince;
+
+    private volatile boolean moving = true;
+
+    private boolean started;
+
+    /**
+     * @param context to get {@link SensorManager}
+     */
+    public MotionDetector(Context context) {
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    }
+
+    /**
+     * @param motionListener to be notified whenever device starts or stops moving
+     * @return current instance of this class
+     */
+    public MotionDetector setMotionListener(MotionListener motionListener) {
+        this.motionListener = motionListener;
+        return this;
+    }
+
+    /**
+     * @return listener to be notified whenever device starts or stops moving, may be null
+     */
+    public MotionListener getMotionListener() {
+        return motionListener;
+    }
+
+    /**
+     * @param samplingPeriod time between two samples in microseconds
+     * @return current instance of this class
+     */
+    public MotionDetector setSamplingPeriod(int samplingPeriod) {
+        this.samplingPeriod = samplingPeriod;
+        return this;
+    }
+
+    /**
+     * Longer latency saves more battery but delays detection of motion by up to the same time. It is ignored below KitKat.
+     *
+     * @param maxReportLatency in microseconds
+     * @return current instance of this class
+     */
+    public MotionDetector setMaxReportLatency(int maxReportLatency) {
+        this.maxReportLatency = maxReportLatency;
+        return this;
+    }
+
+    /**
+     * @param threshold standard deviation of acceleration in m/s^2, above which device is considered moving
+     * @return current instance of this class
+     */
+    public MotionDetector setThreshold(float threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param stillTime in milliseconds, for which device should be still to be considered stationary
+     * @return current instance of this class
+     */
+    public MotionDetector setStillTime(long stillTime) {
+        this.stillTime = stillTime;
+        return this;
+    }
+
+    /**
+     * Starts sampling the accelerometer. Device is considered moving until it has been still for {@code stillTime}.
+     *
+     * @return false if device has no accelerometer
+     */
+    public boolean start() {
+        if (started) return true;
+        Sensor sensor = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) : null;
+        if (sensor == null)
+            return false;
+
+        count = 0;
+        mean = m2 = 0;
+        windowStart = stillSince = 0;
+        moving = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            started = sensorManager.registerListener(this, sensor, samplingPeriod, maxReportLatency);
+        else
+            started = sensorManager.registerListener(this, sensor, samplingPeriod);
+        return started;
+    }
+
+    public void stop() {
+        if (started)
+            sensorManager.unregisterListener(this);
+        started = false;
+        moving = true;
+    }
+
+    /**
+     * @return false only if device has been still for {@code stillTime}
+     */
+    public boolean isMoving() {
+        return moving;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float x = event.values[0], y = event.values[1], z = event.values[2];
+        double magnitude = Math.sqrt(x * x + y * y + z * z);
+
+        if (count == 0)
+            windowStart = event.timestamp;
+        count++;
+        double delta = magnitude - mean;
+        mean += delta / count;
+        m2 += delta * (magnitude - mean);
+
+        if (event.timestamp - windowStart < WINDOW)
+            return;
+
+        // window is complete
+        boolean still = count > 1 && Math.sqrt(m2 / (count - 1)) < threshold;
+        count = 0;
+        mean = m2 = 0;
+
+        if (!still) {
+            stillSince = 0;
+            if (!moving) {
+                moving = true;
+                if (motionListener != null) motionListener.onMotionChanged(true);
+            }
+        } else {
+            if (stillSince == 0)
+                stillSince = windowStart;
+            if (moving && (event.timestamp - stillSince) / 1000000 >= stillTime) {
+                moving = false;
+                if (motionListener != null) motionListener.onMotionChanged(false);
+            }
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * To be notified when device starts or stops moving
+     */
+    public interface MotionListener {
+        /**
+         * @param moving true if device has started moving, false if it has become stationary
+         */
+        void onMotionChanged(boolean moving);
+    }
+}
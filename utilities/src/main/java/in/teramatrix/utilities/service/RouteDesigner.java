@@ -13,11 +13,11 @@ import com.google.android.gms.maps.model.PolylineOptions;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import in.teramatrix.utilities.ResponseListener;
 import in.teramatrix.utilities.exception.CorruptedResponseException;
+import in.teramatrix.utilities.model.CoordinateArray;
 import in.teramatrix.utilities.model.TravelMode;
 import in.teramatrix.utilities.util.GUtils;
 import in.teramatrix.utilities.util.UrlManager;
@@ -104,6 +104,11 @@ public class RouteDesigner extends AsyncTask<LatLng, Void, Polyline[]> {
      */
     private boolean autoZoom;
 
+    /**
+     * Points of the route decoded from the overview polyline, available after a successful request.
+     */
+    private CoordinateArray route;
+
     /**
      * This will publish results to your app module. Just pass an implemented version of this listener in this class
      * and results will be in your hand.
@@ -185,6 +190,13 @@ public class RouteDesigner extends AsyncTask<LatLng, Void, Polyline[]> {
         return this;
     }
 
+    /**
+     * @return points of the designed route in fixed-point coordinates, null until the request has completed successfully
+     */
+    public CoordinateArray getRoute() {
+        return route;
+    }
+
     /**
      * It is just like build method of Builder Pattern. It will execute this {@link AsyncTask}
      * @param waypoints an array of all the waypoints but should be less then 10
@@ -223,14 +235,14 @@ public class RouteDesigner extends AsyncTask<LatLng, Void, Polyline[]> {
                     JSONObject routes = routeArray.getJSONObject(0);
                     JSONObject overviewPolylines = routes.getJSONObject("overview_polyline");
                     String encodedString = overviewPolylines.getString("points");
-                    final List<LatLng> list = decodePoly(encodedString);
+                    route = GUtils.decodePolyline(encodedString);
                     ((Activity) context).runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
-                            for (int z = 0; z < list.size() - 1; z++) {
-                                baseLayer.add(list.get(z), list.get(z + 1));
-                                upperLayer.add(list.get(z), list.get(z + 1));
-                            }
+                            // converting to LatLng only here, at the map boundary
+                            List<LatLng> list = route.toLatLngList();
+                            baseLayer.addAll(list);
+                            upperLayer.addAll(list);
                             polylines[0] = map.addPolyline(baseLayer);
                             polylines[1] = map.addPolyline(upperLayer);
                         }
@@ -266,41 +278,6 @@ public class RouteDesigner extends AsyncTask<LatLng, Void, Polyline[]> {
         if (listener != null) listener.onRequestCompleted(json, polylines);
     }
 
-    /**
-     * This code will perform calculations on the json and decode the data for Polylines
-     * This decoding algorithm is provided by the vendor and 100% tested. So we will keep it untouched.
-     */
-    private List<LatLng> decodePoly(String encoded) {
-        List<LatLng> poly = new ArrayList<>();
-        int index = 0, len = encoded.length();
-        int lat = 0, lng = 0;
-
-        while (index < len) {
-            int b, shift = 0, result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlat = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lat += dlat;
-
-            shift = 0;
-            result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lng += dlng;
-
-            LatLng p = new LatLng( (((double) lat / 1E5)), (((double) lng / 1E5) ));
-            poly.add(p);
-        }
-        return poly;
-    }
-
     /**
      * An interface to publish results in the caller classes. By implementing this,
      * end user of the module can access final results.
@@ -0,0 +1,211 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.maps.model.LatLng;
+
+import in.teramatrix.utilities.util.GUtils;
+
+/**
+ * Detects stops on the location stream as they happen, instead of clustering stored locations afterwards. A stop starts when
+ * locations stay within {@code radius} of their centroid for {@code minDuration}, and ends when locations leave the radius.
+ * <p>
+ * Only a running centroid of the current cluster is kept, so memory doesn't grow with the length of a stop and a location is
+ * processed in constant time. A single outlier doesn't end a stop, nor restarts a cluster which is not a stop yet, locations should
+ * be outside the radius {@code exitConfirmations} times in a row. Events are published once per stop, so heavy work like reverse geocoding the place of the stop runs once per stop
+ * instead of once per location.
+ * <pre>
+ * locationHandler.addLocationListener(new StopDetector().setRadius(50).setMinDuration(5 * 60 * 1000).setStopListener(listener));
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class StopDetector implements LocationListener {
+    private StopListener stopListener;
+
+    /**
+     * Radius of a stop in meters
+     */
+    private float radius = 50;
+
+    /**
+     * Time in milliseconds for which locations should stay within the radius to make a stop
+     */
+    private long minDuration = 3 * 60 * 1000;
+
+    /**
+     * Number of consecutive locations outside the radius to end a stop, or to start another cluster
+     */
+    private int exitConfirmations = 2;
+
+    /**
+     * Locations with accuracy radius more than this (in meters) are ignored
+     */
+    private float accuracyLimit = 100;
+
+    /**
+     * First location of the cluster, and mean offset of the locations of the cluster from it in degrees
+     */
+    private double anchorLatitude, anchorLongitude;
+    private double meanLatitude, meanLongitude;
+    private int count;
+
+    /**
+     * Time of the first and of the last location inside the cluster
+     */
+    private long startTime, lastTime;
+
+    private boolean inStop;
+    private int outside;
+
+    /**
+     * @param stopListener to be notified when a stop starts and ends
+     * @return current instance of this class
+     */
+    public StopDetector setStopListener(StopListener stopListener) {
+        this.stopListener = stopListener;
+        return this;
+    }
+
+    /**
+     * @param radius in meters, locations within this distance from the centroid belong to the same stop
+     * @return current instance of this class
+     */
+    public StopDetector setRadius(float radius) {
+        this.radius = radius;
+        return this;
+    }
+
+    /**
+     * @param minDuration in milliseconds, shortest time to be considered a stop
+     * @return current instance of this class
+     */
+    public StopDetector setMinDuration(long minDuration) {
+        this.minDuration = minDuration;
+        return this;
+    }
+
+    /**
+     * @param exitConfirmations number of consecutive locations outside the radius to end a stop, or to start another cluster
+     * @return current instance of this class
+     */
+    public StopDetector setExitConfirmations(int exitConfirmations) {
+        this.exitConfirmations = exitConfirmations;
+        return this;
+    }
+
+    /**
+     * @param accuracyLimit in meters, less accurate locations will be ignored
+     * @return current instance of this class
+     */
+    public StopDetector setAccuracyLimit(float accuracyLimit) {
+        this.accuracyLimit = accuracyLimit;
+        return this;
+    }
+
+    @Override
+    public synchronized void onLocationChanged(Location location) {
+        if (location == null || (location.hasAccuracy() && location.getAccuracy() > accuracyLimit))
+            return;
+
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        long time = location.getTime();
+        if (count == 0) {
+            startCluster(latitude, longitude, time);
+            return;
+        }
+
+        double centroidLatitude = getCentroidLatitude();
+        double centroidLongitude = getCentroidLongitude();
+        if (GUtils.getDistance(centroidLatitude, centroidLongitude, latitude, longitude) * 1000 <= radius) {
+            outside = 0;
+            count++;
+            meanLatitude += (latitude - anchorLatitude - meanLatitude) / count;
+            meanLongitude += (wrap(longitude - anchorLongitude) - meanLongitude) / count;
+            lastTime = time;
+            if (!inStop && lastTime - startTime >= minDuration) {
+                inStop = true;
+                if (stopListener != null)
+                    stopListener.onStopStarted(new LatLng(getCentroidLatitude(), getCentroidLongitude()), startTime);
+            }
+        } else {
+            // may be just an outlier, either in a stop or in a cluster which would become one
+            if (++outside < exitConfirmations)
+                return;
+            if (inStop) {
+                inStop = false;
+                if (stopListener != null)
+                    stopListener.onStopEnded(new LatLng(centroidLatitude, centroidLongitude), startTime, lastTime - startTime);
+            }
+            startCluster(latitude, longitude, time);
+        }
+    }
+
+    /**
+     * Forgets the current cluster, ending the current stop if any
+     */
+    public synchronized void reset() {
+        if (inStop && stopListener != null)
+            stopListener.onStopEnded(new LatLng(getCentroidLatitude(), getCentroidLongitude()), startTime, lastTime - startTime);
+        inStop = false;
+        count = 0;
+        outside = 0;
+    }
+
+    /**
+     * @return true if device is in a stop at the moment
+     */
+    public synchronized boolean isInStop() {
+        return inStop;
+    }
+
+    /**
+     * @return time of the first location of the current stop or cluster in milliseconds
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    private void startCluster(double latitude, double longitude, long time) {
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        meanLatitude = meanLongitude = 0;
+        count = 1;
+        outside = 0;
+        startTime = lastTime = time;
+    }
+
+    private double getCentroidLatitude() {
+        return anchorLatitude + meanLatitude;
+    }
+
+    private double getCentroidLongitude() {
+        return wrap(anchorLongitude + meanLongitude);
+    }
+
+    /**
+     * @return longitude or difference of longitudes in the range of [-180, 180)
+     */
+    private static double wrap(double longitude) {
+        return longitude >= 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+    }
+
+    /**
+     * To be notified when a stop starts and ends
+     */
+    public interface StopListener {
+        /**
+         * @param centroid  of the locations of the stop so far
+         * @param startTime time of the first location of the stop in milliseconds
+         */
+        void onStopStarted(LatLng centroid, long startTime);
+
+        /**
+         * @param centroid  of all the locations of the stop
+         * @param startTime time of the first location of the stop in milliseconds
+         * @param duration  time from the first to the last location of the stop in milliseconds
+         */
+        void onStopEnded(LatLng centroid, long startTime, long duration);
+    }
+}
@@ -0,0 +1,458 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Replays a recorded GPS trace through a {@link LocationHandler}, without a device or Google Play services. Locations are pushed
+ * into {@code onLocationChanged()} of the handler, so they run through its filters and pipeline and reach its listeners exactly like
+ * live locations. It is meant to tune {@code distanceLimit}, {@code speedLimit} and {@code accuracyLimit} offline against real traces.
+ * <pre>
+ * LocationHandler handler = new LocationHandler(context).setFilters(Filters.ACCURACY, Filters.DISTANCE).setDistanceLimit(20);
+ * TraceReplayer.Report report = new TraceReplayer(handler).replay(TraceReplayer.parseGpx(reader));
+ * Log.d("Replay", report.toString());
+ * </pre>
+ * Traces can be read from GPX (track, route and way points), NMEA (RMC sentences, with accuracy and altitude from GGA) and
+ * CSV files. Replay runs on the calling thread, so call it from a background thread, especially in real time.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TraceReplayer {
+    /**
+     * Provider set in the replayed locations
+     */
+    public static final String PROVIDER = "replay";
+
+    /**
+     * Horizontal accuracy in meters of a GPS fix with dilution of precision of 1, to convert HDOP into accuracy
+     */
+    private static final float UERE = 5;
+
+    private final LocationHandler handler;
+
+    /**
+     * 0 to replay at maximum speed, 1 for real time, 10 for ten times faster than real time and so on
+     */
+    private double speedFactor;
+
+    /**
+     * @param handler to be fed with the trace, it should not be started
+     */
+    public TraceReplayer(LocationHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * By default trace is replayed at maximum speed, to measure throughput of the filters.
+     *
+     * @param speedFactor 1 to replay in real time, more to replay faster, 0 for maximum speed
+     * @return current instance of this class
+     */
+    public TraceReplayer setSpeedFactor(double speedFactor) {
+        this.speedFactor = speedFactor;
+        return this;
+    }
+
+    /**
+     * Pushes every location of the trace into the handler. Trace is not altered, handler copies a location before altering it.
+     * Counters and stages of the handler are reset before replay, and the replay neither updates
+     * {@code LocationHandler.lastLocation} nor the store of a persistent handler.
+     *
+     * @param trace locations, oldest first
+     * @return statistics of the replay
+     * @throws InterruptedException if interrupted while waiting in real time replay
+     * @throws IllegalStateException if the handler is started
+     */
+    public Report replay(List<Location> trace) throws InterruptedException {
+        // live locations would run through the same filters and counters on another thread
+        if (handler.isStarted())
+            throw new IllegalStateException("LocationHandler should not be started while a trace is replayed");
+        handler.setReplaying(true);
+        handler.resetCounters();
+
+        long start = SystemClock.elapsedRealtime();
+        long nanos = System.nanoTime();
+        long first = trace.isEmpty() ? 0 : trace.get(0).getTime();
+        try {
+            for (Location location : trace) {
+                if (speedFactor > 0) {
+                    long due = start + (long) ((location.getTime() - first) / speedFactor);
+                    long wait = due - SystemClock.elapsedRealtime();
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                }
+                handler.onLocationChanged(location);
+            }
+        } finally {
+            handler.setReplaying(false);
+        }
+        nanos = System.nanoTime() - nanos;
+
+        Report report = new Report(trace.size(), handler.getProcessedCount(), handler.getDroppedCount(), nanos);
+        for (LocationHandler.Filters filter : LocationHandler.Filters.values())
+            report.rejections[filter.ordinal()] = handler.getRejectionCount(filter);
+        return report;
+    }
+
+    /**
+     * Reads track points, route points and way points of a GPX file, in the order they appear. Time, elevation, and if present,
+     * speed, course and HDOP are read.
+     *
+     * @param reader GPX document
+     * @return locations of the trace
+     * @throws IOException if the document can not be read or parsed
+     */
+    public static List<Location> parseGpx(Reader reader) throws IOException {
+        List<Location> trace = new ArrayList<>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(reader);
+            Location point = null;
+            String tag = null;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    tag = parser.getName();
+                    if ("trkpt".equals(tag) || "rtept".equals(tag) || "wpt".equals(tag)) {
+                        point = new Location(PROVIDER);
+                        point.setLatitude(Double.parseDouble(parser.getAttributeValue(null, "lat")));
+                        point.setLongitude(Double.parseDouble(parser.getAttributeValue(null, "lon")));
+                    }
+                } else if (event == XmlPullParser.TEXT && point != null && tag != null) {
+                    String text = parser.getText().trim();
+                    if (text.isEmpty()) continue;
+                    switch (tag) {
+                        case "time":
+                            point.setTime(parseTime(text));
+                            break;
+                        case "ele":
+                            point.setAltitude(Double.parseDouble(text));
+                            break;
+                        case "speed":
+                            point.setSpeed(Float.parseFloat(text));
+                            break;
+                        case "course":
+                            point.setBearing(Float.parseFloat(text));
+                            break;
+                        case "hdop":
+                            point.setAccuracy(Float.parseFloat(text) * UERE);
+                            break;
+                    }
+                } else if (event == XmlPullParser.END_TAG) {
+                    String name = parser.getName();
+                    if (point != null && ("trkpt".equals(name) || "rtept".equals(name) || "wpt".equals(name))) {
+                        trace.add(point);
+                        point = null;
+                    }
+                    tag = null;
+                }
+            }
+        } catch (XmlPullParserException | NumberFormatException e) {
+            throw new IOException("Invalid GPX: " + e.getMessage());
+        }
+        return trace;
+    }
+
+    /**
+     * Reads RMC sentences of any talker (GP, GN, GL...) with a valid fix. Accuracy and altitude are taken from a GGA sentence
+     * of the same time if there is one. Sentences with a wrong checksum are skipped.
+     *
+     * @param reader NMEA log, one sentence per line
+     * @return locations of the trace
+     * @throws IOException if the log can not be read
+     */
+    public static List<Location> parseNmea(Reader reader) throws IOException {
+        List<Location> trace = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        String ggaTime = null, rmcTime = null;
+        float hdop = 0;
+        double altitude = 0;
+        Location last = null;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.length() < 7 || line.charAt(0) != '$' || !validChecksum(line))
+                continue;
+            int star = line.indexOf('*');
+            String[] fields = (star > 0 ? line.substring(0, star) : line).split(",", -1);
+            String type = fields[0].substring(3);
+            try {
+                if ("GGA".equals(type) && fields.length > 9) {
+                    ggaTime = fields[1];
+                    hdop = fields[8].isEmpty() ? 0 : Float.parseFloat(fields[8]);
+                    altitude = fields[9].isEmpty() ? 0 : Double.parseDouble(fields[9]);
+                    // GGA may come after the RMC of the same time
+                    if (last != null && ggaTime.equals(rmcTime)) {
+                        if (hdop > 0) last.setAccuracy(hdop * UERE);
+                        last.setAltitude(altitude);
+                    }
+                } else if ("RMC".equals(type) && fields.length > 9 && "A".equals(fields[2])) {
+                    Location location = new Location(PROVIDER);
+                    location.setTime(parseNmeaTime(fields[9], fields[1]));
+                    location.setLatitude(parseNmeaCoordinate(fields[3], fields[4]));
+                    location.setLongitude(parseNmeaCoordinate(fields[5], fields[6]));
+                    if (!fields[7].isEmpty())
+                        location.setSpeed(Float.parseFloat(fields[7]) * 0.514444f);
+                    if (!fields[8].isEmpty())
+                        location.setBearing(Float.parseFloat(fields[8]));
+                    if (fields[1].equals(ggaTime)) {
+                        if (hdop > 0) location.setAccuracy(hdop * UERE);
+                        location.setAltitude(altitude);
+                    }
+                    rmcTime = fields[1];
+                    last = location;
+                    trace.add(location);
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                // a broken sentence is skipped, like a receiver would do
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Reads a CSV file with a header line naming the columns: time (or timestamp), latitude (or lat), longitude (or lng, lon),
+     * and optionally accuracy, speed, bearing and altitude. Without a header, columns are taken in this order. Time may be in
+     * milliseconds since epoch or in ISO 8601 form.
+     *
+     * @param reader CSV document
+     * @return locations of the trace
+     * @throws IOException if the document can not be read or parsed
+     */
+    public static List<Location> parseCsv(Reader reader) throws IOException {
+        List<Location> trace = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        // columns of time, latitude, longitude, accuracy, speed, bearing and altitude
+        int[] columns = {0, 1, 2, 3, 4, 5, 6};
+        String line;
+        boolean first = true;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split(",", -1);
+            if (first) {
+                first = false;
+                if (fields.length < 2 || !isDecimal(fields[1])) {
+                    mapHeader(fields, columns);
+                    continue;
+                }
+            }
+            try {
+                Location location = new Location(PROVIDER);
+                String time = field(fields, columns[0]);
+                location.setTime(isNumber(time) ? Long.parseLong(time) : parseTime(time));
+                location.setLatitude(Double.parseDouble(field(fields, columns[1])));
+                location.setLongitude(Double.parseDouble(field(fields, columns[2])));
+                String value;
+                if (!(value = field(fields, columns[3])).isEmpty()) location.setAccuracy(Float.parseFloat(value));
+                if (!(value = field(fields, columns[4])).isEmpty()) location.setSpeed(Float.parseFloat(value));
+                if (!(value = field(fields, columns[5])).isEmpty()) location.setBearing(Float.parseFloat(value));
+                if (!(value = field(fields, columns[6])).isEmpty()) location.setAltitude(Double.parseDouble(value));
+                trace.add(location);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid CSV line: " + line);
+            }
+        }
+        return trace;
+    }
+
+    private static void mapHeader(String[] header, int[] columns) {
+        Arrays.fill(columns, -1);
+        for (int i = 0; i < header.length; i++) {
+            String name = header[i].trim().toLowerCase();
+            if (name.equals("time") || name.equals("timestamp")) columns[0] = i;
+            else if (name.equals("latitude") || name.equals("lat")) columns[1] = i;
+            else if (name.equals("longitude") || name.equals("lng") || name.equals("lon")) columns[2] = i;
+            else if (name.equals("accuracy")) columns[3] = i;
+            else if (name.equals("speed")) columns[4] = i;
+            else if (name.equals("bearing")) columns[5] = i;
+            else if (name.equals("altitude")) columns[6] = i;
+        }
+    }
+
+    private static String field(String[] fields, int column) {
+        return column >= 0 && column < fields.length ? fields[column].trim() : "";
+    }
+
+    private static boolean isDecimal(String value) {
+        try {
+            Double.parseDouble(value.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        value = value.trim();
+        if (value.isEmpty()) return false;
+        for (int i = 0; i < value.length(); i++)
+            if (!Character.isDigit(value.charAt(i))) return false;
+        return true;
+    }
+
+    /**
+     * @param time ISO 8601 time like 2017-05-01T10:20:30Z, 2017-05-01T10:20:30.250Z or 2017-05-01T15:50:30+05:30
+     * @return milliseconds since epoch
+     */
+    static long parseTime(String time) {
+        try {
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(Integer.parseInt(time.substring(0, 4)), Integer.parseInt(time.substring(5, 7)) - 1,
+                    Integer.parseInt(time.substring(8, 10)), Integer.parseInt(time.substring(11, 13)),
+                    Integer.parseInt(time.substring(14, 16)), Integer.parseInt(time.substring(17, 19)));
+            long millis = calendar.getTimeInMillis();
+
+            int i = 19;
+            if (i < time.length() && time.charAt(i) == '.') {
+                int start = ++i;
+                while (i < time.length() && Character.isDigit(time.charAt(i))) i++;
+                String fraction = (time.substring(start, i) + "00").substring(0, 3);
+                millis += Integer.parseInt(fraction);
+            }
+            if (i < time.length() && (time.charAt(i) == '+' || time.charAt(i) == '-')) {
+                int sign = time.charAt(i) == '+' ? 1 : -1;
+                String offset = time.substring(i + 1).replace(":", "");
+                int minutes = Integer.parseInt(offset.substring(0, 2)) * 60 + (offset.length() >= 4 ? Integer.parseInt(offset.substring(2, 4)) : 0);
+                millis -= sign * minutes * 60 * 1000L;
+            }
+            return millis;
+        } catch (IndexOutOfBoundsException e) {
+            throw new NumberFormatException("Invalid time " + time);
+        }
+    }
+
+    /**
+     * @param date ddmmyy
+     * @param time hhmmss.sss
+     * @return milliseconds since epoch, UTC
+     */
+    private static long parseNmeaTime(String date, String time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        // two digit year, receivers before 1980 didn't exist
+        int year = Integer.parseInt(date.substring(4, 6));
+        calendar.set(year < 80 ? 2000 + year : 1900 + year, Integer.parseInt(date.substring(2, 4)) - 1,
+                Integer.parseInt(date.substring(0, 2)), Integer.parseInt(time.substring(0, 2)),
+                Integer.parseInt(time.substring(2, 4)), Integer.parseInt(time.substring(4, 6)));
+        long millis = calendar.getTimeInMillis();
+        if (time.length() > 7)
+            millis += Math.round(Double.parseDouble("0" + time.substring(6)) * 1000);
+        return millis;
+    }
+
+    /**
+     * @param value      (d)ddmm.mmmm
+     * @param hemisphere N, S, E or W
+     * @return degrees, negative in south and west
+     */
+    private static double parseNmeaCoordinate(String value, String hemisphere) {
+        int dot = value.indexOf('.');
+        int degreeDigits = (dot < 0 ? value.length() : dot) - 2;
+        double degrees = Integer.parseInt(value.substring(0, degreeDigits)) + Double.parseDouble(value.substring(degreeDigits)) / 60;
+        return "S".equals(hemisphere) || "W".equals(hemisphere) ? -degrees : degrees;
+    }
+
+    /**
+     * @return true if sentence has no checksum or checksum is correct
+     */
+    private static boolean validChecksum(String sentence) {
+        int star = sentence.indexOf('*');
+        if (star < 0) return true;
+        if (star + 3 > sentence.length()) return false;
+        int checksum = 0;
+        for (int i = 1; i < star; i++)
+            checksum ^= sentence.charAt(i);
+        try {
+            return checksum == Integer.parseInt(sentence.substring(star + 1, star + 3), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Statistics of a replay
+     */
+    public static class Report {
+        private final int count;
+        private final long processed;
+        private final long dropped;
+        private final long nanos;
+        private final long[] rejections = new long[LocationHandler.Filters.values().length];
+
+        Report(int count, long processed, long dropped, long nanos) {
+            this.count = count;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return number of locations in the trace
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return number of locations dropped by throttle or by a stage of the pipeline
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return time taken by the replay in milliseconds
+         */
+        public double getDuration() {
+            return nanos / 1e6;
+        }
+
+        /**
+         * @return locations processed per second, meaningful only at maximum speed
+         */
+        public double getFixesPerSecond() {
+            return nanos > 0 ? processed * 1e9 / nanos : 0;
+        }
+
+        /**
+         * @param filter one of the built-in filters
+         * @return number of locations replaced by the last location because of this filter
+         */
+        public long getRejections(LocationHandler.Filters filter) {
+            return rejections[filter.ordinal()];
+        }
+
+        /**
+         * @param filter one of the built-in filters
+         * @return fraction of the locations replaced because of this filter, from 0 to 1
+         */
+        public double getRejectionRate(LocationHandler.Filters filter) {
+            return processed > 0 ? (double) rejections[filter.ordinal()] / processed : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Report{")
+                    .append("count=").append(count)
+                    .append(", fixesPerSecond=").append(Math.round(getFixesPerSecond()))
+                    .append(", dropped=").append(dropped);
+            for (LocationHandler.Filters filter : LocationHandler.Filters.values())
+                if (rejections[filter.ordinal()] > 0)
+                    builder.append(", ").append(filter).append('=').append(rejections[filter.ordinal()]);
+            return builder.append('}').toString();
+        }
+    }
+}
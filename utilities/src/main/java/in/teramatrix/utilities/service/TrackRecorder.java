@@ -0,0 +1,438 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import in.teramatrix.utilities.model.CoordinateArray;
+import in.teramatrix.utilities.util.TrackCodec;
+
+/**
+ * Records every location in a memory-mapped ring file, a cheap replacement of inserting a database row per location.
+ * The file is mapped once and a location is written as a fixed record of 32 bytes, so recording is just a few memory
+ * writes with no system call, no allocation and no transaction. When the ring is full, the oldest records are overwritten.
+ * <p>
+ * Layout of the file is a header of {@link #HEADER_SIZE} bytes followed by {@code capacity} records:
+ * <pre>
+ * time (long) | latitude E7 (int) | longitude E7 (int) | accuracy (float) | speed (float) | bearing (float) | commit marker (int)
+ * </pre>
+ * The 3 highest bits of the commit marker are set for accuracy, speed and bearing which the location doesn't have, in this order,
+ * so a record written without them is read back without them.
+ * Commit marker of a record is written last and is derived from its sequence number, so a record half written when the process
+ * crashes is never read back, and the next record is found by checking markers after the head stored in the header. This
+ * only holds for a crash of the process, whose writes are still in the mapped pages. Pages are written to the disk by the OS
+ * in any order, so after a crash of the device only the records forced by {@code flush()} are sure to be intact. Call it from
+ * a background thread, for example on every batch of locations.
+ * <p>
+ * It is a {@link LocationListener}, so just add it to a running {@link LocationHandler}:
+ * <pre>
+ * TrackRecorder recorder = new TrackRecorder(new File(getFilesDir(), "track"));
+ * locationHandler.addLocationListener(recorder);
+ * ...
+ * TrackRecorder.Cursor cursor = recorder.query(from, to);
+ * while (cursor.next()) {
+ *     polyline.add(cursor.getLatitude(), cursor.getLongitude());
+ * }
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TrackRecorder implements LocationListener {
+    /**
+     * Size of the header in bytes
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Size of a single record in bytes
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * Capacity used by default, about two days of a location every 3 seconds in 2 MB
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * Largest capacity, a file can only be mapped up to 2 GB
+     */
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private static final int MAGIC = 0x54524B31; // TRK1
+    private static final int VERSION = 1;
+
+    /**
+     * Offsets in the header
+     */
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_CAPACITY = 8, H_RECORD_SIZE = 12, H_HEAD = 16;
+
+    /**
+     * Offsets in a record
+     */
+    private static final int R_TIME = 0, R_LATITUDE = 8, R_LONGITUDE = 12, R_ACCURACY = 16, R_SPEED = 20, R_BEARING = 24, R_MARKER = 28;
+
+    /**
+     * Bits of the commit marker derived from the sequence number, the others are flags of the missing values
+     */
+    private static final int MARKER_BITS = 0x1FFFFFFF, MISSING_SHIFT = 29;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Number of records the ring can hold
+     */
+    private final int capacity;
+
+    /**
+     * Sequence number of the next record, which is also the number of records ever written
+     */
+    private volatile long head;
+
+    /**
+     * Opens the ring file with the default capacity, creating it if it doesn't exist.
+     *
+     * @param file ring file
+     * @throws IOException if file can not be created or mapped
+     */
+    public TrackRecorder(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the ring file, creating it if it doesn't exist. An existing file keeps its own capacity, and the records committed before
+     * a crash are recovered. A file which is not a ring file is cleared.
+     *
+     * @param file     ring file
+     * @param capacity number of records to be held by a new file, up to {@link #MAX_CAPACITY}
+     * @throws IOException if file can not be created or mapped
+     */
+    public TrackRecorder(File file, int capacity) throws IOException {
+        if (capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity should be more than zero and at most " + MAX_CAPACITY);
+
+        this.file = new RandomAccessFile(file, "rw");
+        boolean valid = false;
+        if (this.file.length() >= HEADER_SIZE) {
+            this.file.seek(H_MAGIC);
+            int magic = this.file.readInt();
+            int version = this.file.readInt();
+            int existing = this.file.readInt();
+            int recordSize = this.file.readInt();
+            if (magic == MAGIC && version == VERSION && recordSize == RECORD_SIZE && existing > 0 && existing <= MAX_CAPACITY
+                    && this.file.length() == HEADER_SIZE + (long) existing * RECORD_SIZE) {
+                capacity = existing;
+                valid = true;
+            }
+        }
+
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (!valid)
+            this.file.setLength(0);
+        this.file.setLength(size);
+        buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (valid) {
+            recover();
+        } else {
+            buffer.putInt(H_MAGIC, MAGIC);
+            buffer.putInt(H_VERSION, VERSION);
+            buffer.putInt(H_CAPACITY, capacity);
+            buffer.putInt(H_RECORD_SIZE, RECORD_SIZE);
+            buffer.putLong(H_HEAD, 0);
+            head = 0;
+        }
+    }
+
+    /**
+     * Head in the header is written after the record, so after a crash of the process it may lag behind but never lead. Records
+     * committed after it are found by their markers. After a crash of the device, pages written since the last {@code flush()}
+     * may have reached the disk in any order, so recovery stops at the first record whose marker did not make it.
+     */
+    private void recover() {
+        long head = Math.max(0, buffer.getLong(H_HEAD));
+        while ((buffer.getInt(offset(head) + R_MARKER) & MARKER_BITS) == marker(head))
+            head++;
+        this.head = head;
+        buffer.putLong(H_HEAD, head);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        if (location != null)
+            append(location.getTime(), location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), location.getSpeed(), location.getBearing(),
+                    (location.hasAccuracy() ? TrackCodec.HAS_ACCURACY : 0) | (location.hasSpeed() ? TrackCodec.HAS_SPEED : 0)
+                            | (location.hasBearing() ? TrackCodec.HAS_BEARING : 0));
+    }
+
+    /**
+     * Appends a record which has accuracy, speed and bearing to the ring, overwriting the oldest one if it is full.
+     *
+     * @param time      in milliseconds, should not decrease from one record to the next for {@code query()} to work
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @param accuracy  in meters
+     * @param speed     in m/s
+     * @param bearing   in degrees
+     */
+    public void append(long time, double latitude, double longitude, float accuracy, float speed, float bearing) {
+        append(time, latitude, longitude, accuracy, speed, bearing, TrackCodec.HAS_ALL);
+    }
+
+    /**
+     * Appends a record to the ring, overwriting the oldest one if it is full.
+     *
+     * @param time      in milliseconds, should not decrease from one record to the next for {@code query()} to work
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @param accuracy  in meters
+     * @param speed     in m/s
+     * @param bearing   in degrees
+     * @param flags     values the location has, any of {@code TrackCodec.HAS_ACCURACY}, {@code HAS_SPEED} and {@code HAS_BEARING}
+     */
+    public synchronized void append(long time, double latitude, double longitude, float accuracy, float speed, float bearing,
+                                    int flags) {
+        long sequence = head;
+        int offset = offset(sequence);
+        // record is invalidated first, so that a reader doesn't take a half written record for the old one
+        buffer.putInt(offset + R_MARKER, 0);
+        buffer.putLong(offset + R_TIME, time);
+        buffer.putInt(offset + R_LATITUDE, CoordinateArray.toE7(latitude));
+        buffer.putInt(offset + R_LONGITUDE, CoordinateArray.toE7(longitude));
+        buffer.putFloat(offset + R_ACCURACY, accuracy);
+        buffer.putFloat(offset + R_SPEED, speed);
+        buffer.putFloat(offset + R_BEARING, bearing);
+        buffer.putInt(offset + R_MARKER, marker(sequence) | (~flags & TrackCodec.HAS_ALL) << MISSING_SHIFT);
+        buffer.putLong(H_HEAD, sequence + 1);
+        head = sequence + 1;
+    }
+
+    /**
+     * @return number of records ever written to the file
+     */
+    public long getCount() {
+        return head;
+    }
+
+    /**
+     * @return number of records currently held by the ring
+     */
+    public int size() {
+        return (int) Math.min(head, capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return sequence number of the oldest record held by the ring
+     */
+    public long getFirstSequence() {
+        return Math.max(0, head - capacity);
+    }
+
+    /**
+     * @return a cursor over all the records held by the ring, oldest first
+     */
+    public Cursor cursor() {
+        long head = this.head;
+        return new Cursor(Math.max(0, head - capacity), head, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds the records of a time range by binary search, so times should not decrease from one record to the next.
+     *
+     * @param from start of the range in milliseconds (inclusive)
+     * @param to   end of the range in milliseconds (inclusive)
+     * @return a cursor over the records of the range, oldest first
+     */
+    public Cursor query(long from, long to) {
+        long head = this.head;
+        long low = Math.max(0, head - capacity);
+        long high = head;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (buffer.getLong(offset(mid) + R_TIME) < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return new Cursor(low, head, to);
+    }
+
+    /**
+     * Forces the written records to the disk. It is an I/O operation, so call it from a background thread.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Flushes and closes the file. Recorder should not be used after it.
+     *
+     * @throws IOException if file can not be closed
+     */
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private int offset(long sequence) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    /**
+     * @return commit marker of a sequence number without the flags, never 0 which marks a record being written
+     */
+    private static int marker(long sequence) {
+        int marker = ((int) (sequence ^ (sequence >>> 32)) + 1) & MARKER_BITS;
+        return marker == 0 ? 1 : marker;
+    }
+
+    /**
+     * A forward only cursor over the records, reading straight from the mapped file. Values of the current record are held in
+     * primitive fields, so nothing is allocated while iterating. A record overwritten by the writer after the cursor was created
+     * is skipped, on a best effort basis: the mapped file is read without any memory barrier, so a record being overwritten by
+     * another thread at the same time may rarely be read with values of both the old and the new record. Records well behind
+     * the head are never affected. A cursor should be used by a single thread.
+     */
+    public class Cursor {
+        private final ByteBuffer view = buffer.duplicate();
+        private final long end;
+        private final long to;
+        private long next;
+
+        private long sequence = -1;
+        private long time;
+        private int latitudeE7, longitudeE7;
+        private float accuracy, speed, bearing;
+        private int flags;
+
+        Cursor(long start, long end, long to) {
+            this.next = start;
+            this.end = end;
+            this.to = to;
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return false if there is no more record in the range
+         */
+        public boolean next() {
+            while (next < end) {
+                long sequence = next++;
+                int offset = offset(sequence);
+                int marker = view.getInt(offset + R_MARKER);
+                long time = view.getLong(offset + R_TIME);
+                int latitudeE7 = view.getInt(offset + R_LATITUDE);
+                int longitudeE7 = view.getInt(offset + R_LONGITUDE);
+                float accuracy = view.getFloat(offset + R_ACCURACY);
+                float speed = view.getFloat(offset + R_SPEED);
+                float bearing = view.getFloat(offset + R_BEARING);
+                if ((marker & MARKER_BITS) != marker(sequence) || view.getInt(offset + R_MARKER) != marker)
+                    continue;
+                if (time > to) {
+                    next = end;
+                    return false;
+                }
+
+                this.sequence = sequence;
+                this.time = time;
+                this.latitudeE7 = latitudeE7;
+                this.longitudeE7 = longitudeE7;
+                this.accuracy = accuracy;
+                this.speed = speed;
+                this.bearing = bearing;
+                this.flags = ~(marker >>> MISSING_SHIFT) & TrackCodec.HAS_ALL;
+                return true;
+            }
+            return false;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getLatitudeE7() {
+            return latitudeE7;
+        }
+
+        public int getLongitudeE7() {
+            return longitudeE7;
+        }
+
+        public double getLatitude() {
+            return CoordinateArray.fromE7(latitudeE7);
+        }
+
+        public double getLongitude() {
+            return CoordinateArray.fromE7(longitudeE7);
+        }
+
+        public float getAccuracy() {
+            return accuracy;
+        }
+
+        public float getSpeed() {
+            return speed;
+        }
+
+        public float getBearing() {
+            return bearing;
+        }
+
+        /**
+         * @return values the current record has, any of {@code TrackCodec.HAS_ACCURACY}, {@code HAS_SPEED} and {@code HAS_BEARING}
+         */
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean hasAccuracy() {
+            return (flags & TrackCodec.HAS_ACCURACY) != 0;
+        }
+
+        public boolean hasSpeed() {
+            return (flags & TrackCodec.HAS_SPEED) != 0;
+        }
+
+        public boolean hasBearing() {
+            return (flags & TrackCodec.HAS_BEARING) != 0;
+        }
+
+        /**
+         * Copies the current record into a location, to reuse a single {@link Location} while iterating. Location is reset first,
+         * so accuracy, speed and bearing are set only if the record has them.
+         *
+         * @param location to be filled
+         */
+        public void copyTo(Location location) {
+            String provider = location.getProvider();
+            location.reset();
+            location.setProvider(provider);
+            location.setTime(time);
+            location.setLatitude(getLatitude());
+            location.setLongitude(getLongitude());
+            if (hasAccuracy())
+                location.setAccuracy(accuracy);
+            if (hasSpeed())
+                location.setSpeed(speed);
+            if (hasBearing())
+                location.setBearing(bearing);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package in.teramatrix.utilities.service;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationListener;
+
+import in.teramatrix.utilities.util.GUtils;
+
+/**
+ * Keeps statistics of a trip up to date as locations arrive, instead of iterating a stored list of locations after the trip:
+ * distance, moving time, idle time, average and maximum speed. Every location is folded into a few primitive fields in constant
+ * time, nothing is allocated and no location is retained.
+ * <p>
+ * Statistics can be read from any thread without blocking the writer, through a sequence lock. Writer makes a version number odd
+ * while updating and even when done, and a reader copies the fields into a {@link Snapshot} and tries again if the version has
+ * changed meanwhile. So a dashboard can poll it as often as it wants.
+ * <pre>
+ * TripStatistics trip = new TripStatistics();
+ * locationHandler.addLocationListener(trip);
+ * ...
+ * TripStatistics.Snapshot snapshot = trip.read(reusableSnapshot);
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TripStatistics implements LocationListener {
+    /**
+     * Even when statistics are consistent, odd while being updated
+     */
+    private volatile int version;
+
+    /**
+     * Statistics, volatile so that a reader sees them in the order they were written
+     */
+    private volatile double distance;
+    private volatile long movingTime, idleTime;
+    private volatile float maxSpeed;
+    private volatile long startTime, endTime;
+    private volatile int count;
+
+    /**
+     * Previous location in primitives
+     */
+    private double latitude, longitude;
+    private long time;
+
+    /**
+     * Speed in m/s above which device is considered moving
+     */
+    private float movingSpeed = 1;
+
+    /**
+     * Locations with accuracy radius more than this (in meters) are ignored
+     */
+    private float accuracyLimit = 100;
+
+    /**
+     * @param movingSpeed in m/s, time between two locations is counted as moving time if speed of the later one is more than this,
+     *                    speed between them is used if it has no speed
+     * @return current instance of this class
+     */
+    public TripStatistics setMovingSpeed(float movingSpeed) {
+        this.movingSpeed = movingSpeed;
+        return this;
+    }
+
+    /**
+     * @param accuracyLimit in meters, less accurate locations will be ignored
+     * @return current instance of this class
+     */
+    public TripStatistics setAccuracyLimit(float accuracyLimit) {
+        this.accuracyLimit = accuracyLimit;
+        return this;
+    }
+
+    @Override
+    public synchronized void onLocationChanged(Location location) {
+        if (location == null || (location.hasAccuracy() && location.getAccuracy() > accuracyLimit))
+            return;
+        long now = location.getTime();
+        if (count > 0 && now <= time)
+            return;
+
+        version++;
+        if (count == 0) {
+            startTime = now;
+        } else {
+            double meters = GUtils.getDistance(latitude, longitude, location.getLatitude(), location.getLongitude()) * 1000;
+            long elapsed = now - time;
+            // Doppler speed of the provider is far less noisy than the distance between two fixes, which drifts while parked
+            float speed = location.hasSpeed() ? location.getSpeed() : (float) (meters * 1000 / elapsed);
+            if (speed > movingSpeed) {
+                // distance while idle is just GPS drift
+                distance += meters;
+                movingTime += elapsed;
+            } else {
+                idleTime += elapsed;
+            }
+            if (speed > maxSpeed)
+                maxSpeed = speed;
+        }
+        endTime = now;
+        count++;
+        version++;
+
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        time = now;
+    }
+
+    /**
+     * Starts a new trip
+     */
+    public synchronized void reset() {
+        version++;
+        distance = 0;
+        movingTime = idleTime = 0;
+        maxSpeed = 0;
+        startTime = endTime = 0;
+        count = 0;
+        version++;
+    }
+
+    /**
+     * @return a new snapshot of current statistics
+     */
+    public Snapshot read() {
+        return read(new Snapshot());
+    }
+
+    /**
+     * Copies current statistics without any lock or allocation.
+     *
+     * @param snapshot to be filled, reuse the same one for polling
+     * @return the same snapshot
+     */
+    public Snapshot read(Snapshot snapshot) {
+        while (true) {
+            int before = version;
+            if ((before & 1) == 0) {
+                snapshot.distance = distance;
+                snapshot.movingTime = movingTime;
+                snapshot.idleTime = idleTime;
+                snapshot.maxSpeed = maxSpeed;
+                snapshot.startTime = startTime;
+                snapshot.endTime = endTime;
+                snapshot.count = count;
+                if (version == before)
+                    return snapshot;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * A consistent copy of the statistics at a moment
+     */
+    public static class Snapshot {
+        private double distance;
+        private long movingTime, idleTime;
+        private float maxSpeed;
+        private long startTime, endTime;
+        private int count;
+
+        /**
+         * @return distance travelled in meters
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        /**
+         * @return time spent moving in milliseconds
+         */
+        public long getMovingTime() {
+            return movingTime;
+        }
+
+        /**
+         * @return time spent idle in milliseconds
+         */
+        public long getIdleTime() {
+            return idleTime;
+        }
+
+        /**
+         * @return maximum speed in m/s
+         */
+        public float getMaxSpeed() {
+            return maxSpeed;
+        }
+
+        /**
+         * @return average speed in m/s while moving
+         */
+        public double getAverageMovingSpeed() {
+            return movingTime > 0 ? distance * 1000 / movingTime : 0;
+        }
+
+        /**
+         * @return average speed in m/s over the whole trip, including idle time
+         */
+        public double getAverageSpeed() {
+            long total = movingTime + idleTime;
+            return total > 0 ? distance * 1000 / total : 0;
+        }
+
+        /**
+         * @return time of the first location of the trip in milliseconds, 0 if none
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return time of the last location of the trip in milliseconds, 0 if none
+         */
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return number of locations taken into account
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "distance=" + distance +
+                    ", movingTime=" + movingTime +
+                    ", idleTime=" + idleTime +
+                    ", maxSpeed=" + maxSpeed +
+                    ", count=" + count +
+                    '}';
+        }
+    }
+}
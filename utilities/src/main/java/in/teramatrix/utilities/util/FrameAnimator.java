@@ -0,0 +1,462 @@
+package in.teramatrix.utilities.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.animation.BounceInterpolator;
+import android.view.animation.Interpolator;
+
+import com.google.android.gms.maps.model.Circle;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A single animation engine for all the markers and circles of the map. Every running animation is updated once per frame from
+ * one {@link Choreographer} callback (a 16 ms {@link Handler} loop below Jelly Bean), instead of a separate delayed runnable,
+ * timer or animator per object. All the animations started in the same frame share the same frame time, so dozens of objects
+ * move in lockstep and none of them drifts because its own loop was late.
+ * <p>
+ * An animation is keyed by its target and property, starting a new one on the same key replaces the running one from the same
+ * frame on, so for example a marker receiving locations faster than its move animation never runs two moves at the same time.
+ * Maps objects can only be touched on the main thread, so this class should also be used on the main thread only.
+ * <pre>
+ * FrameAnimator.getInstance().moveMarker(marker, latLng, 1000);
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class FrameAnimator {
+    /**
+     * Properties of a target, an animation replaces the running one of the same target and property
+     */
+    public static final int POSITION = 0, RADIUS = 1, ANCHOR = 2, ROTATION = 3, ALPHA = 4;
+
+    /**
+     * Delay between two frames when {@link Choreographer} is not available
+     */
+    private static final long FRAME_DELAY = 16;
+
+    private static FrameAnimator instance;
+
+    /**
+     * Running animations in the order they were started, each of them knows its index in this array
+     */
+    private Animation[] animations = new Animation[16];
+    private int count;
+
+    /**
+     * Running animations of each target, linked by {@code Animation.next}, so that an animation is found by its target and
+     * property without scanning all the running ones, even with thousands of markers moving at the same time
+     */
+    private final IdentityHashMap<Object, Animation> running = new IdentityHashMap<>();
+
+    /**
+     * True if next frame has been requested
+     */
+    private boolean scheduled;
+
+    /**
+     * Source of frames, {@link Choreographer} on Jelly Bean and above, a handler otherwise
+     */
+    private final VsyncClock vsync;
+    private final Handler handler;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(SystemClock.uptimeMillis());
+        }
+    };
+
+    private FrameAnimator() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            vsync = new VsyncClock();
+            handler = null;
+        } else {
+            vsync = null;
+            handler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    /**
+     * @return the only instance of this class, to be used on the main thread
+     */
+    public static FrameAnimator getInstance() {
+        if (Looper.myLooper() != Looper.getMainLooper())
+            throw new IllegalStateException("FrameAnimator should be used on the main thread");
+        if (instance == null)
+            instance = new FrameAnimator();
+        return instance;
+    }
+
+    /**
+     * Starts an animation on the next frame, replacing the running animation of the same target and property if any. The replaced
+     * animation is told by {@code onCancel()}, unless it is the same animation, which is then just restarted from its first frame.
+     *
+     * @param target    object being animated, like a {@link Marker}
+     * @param property  one of the properties of this class, or any other number to animate a property of your own
+     * @param animation animation to be run, it should not be running for another target or property
+     * @return current instance of this class
+     */
+    public FrameAnimator start(Object target, int property, Animation animation) {
+        animation.start = -1;
+        Animation superseded = find(target, property);
+        if (superseded == animation) {
+            // already in place, elapsed time counts from the next frame again
+            schedule();
+            return this;
+        }
+        if (superseded != null) {
+            // takes the place of the running one
+            unlink(superseded);
+            animation.index = superseded.index;
+        } else {
+            if (count == animations.length) {
+                Animation[] animations = new Animation[count * 2];
+                System.arraycopy(this.animations, 0, animations, 0, count);
+                this.animations = animations;
+            }
+            animation.index = count++;
+        }
+        animations[animation.index] = animation;
+        animation.target = target;
+        animation.property = property;
+        animation.next = running.put(target, animation);
+
+        if (superseded != null)
+            superseded.onCancel();
+        schedule();
+        return this;
+    }
+
+    /**
+     * Cancels the running animation of a property of the target, it stays where it is.
+     *
+     * @param target   object being animated
+     * @param property property being animated
+     */
+    public void cancel(Object target, int property) {
+        Animation cancelled = find(target, property);
+        if (cancelled == null)
+            return;
+        unlink(cancelled);
+        animations[cancelled.index] = null;
+        cancelled.onCancel();
+    }
+
+    /**
+     * Cancels all the running animations of the target, for example before it is removed from the map.
+     *
+     * @param target object being animated
+     */
+    public void cancel(Object target) {
+        Animation cancelled = running.remove(target);
+        while (cancelled != null) {
+            Animation next = cancelled.next;
+            cancelled.target = cancelled.next = null;
+            animations[cancelled.index] = null;
+            cancelled.onCancel();
+            cancelled = next;
+        }
+    }
+
+    /**
+     * @return true if a property of the target is being animated
+     */
+    public boolean isRunning(Object target, int property) {
+        return find(target, property) != null;
+    }
+
+    /**
+     * @return number of running animations
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for (int i = 0; i < count; i++)
+            if (animations[i] != null)
+                active++;
+        return active;
+    }
+
+    /**
+     * Moves the marker from where it is to the position, linearly.
+     *
+     * @param marker   to be moved
+     * @param to       destination
+     * @param duration in milliseconds
+     * @return current instance of this class
+     */
+    public FrameAnimator moveMarker(Marker marker, LatLng to, long duration) {
+        return start(marker, POSITION, new MarkerMove(marker, marker.getPosition(), to, duration));
+    }
+
+    /**
+     * Changes radius of the circle from what it is to the radius.
+     *
+     * @param circle   to be resized
+     * @param radius   new radius in meters
+     * @param duration in milliseconds
+     * @return current instance of this class
+     */
+    public FrameAnimator resizeCircle(Circle circle, double radius, long duration) {
+        return start(circle, RADIUS, new CircleResize(circle, circle.getRadius(), radius, duration));
+    }
+
+    /**
+     * Grows the radius of the circle from zero to the radius again and again, until cancelled.
+     *
+     * @param circle   to be pulsed
+     * @param radius   largest radius in meters
+     * @param duration of a single pulse in milliseconds
+     * @param interpolator of a single pulse, null for linear
+     * @return current instance of this class
+     */
+    public FrameAnimator pulseCircle(Circle circle, double radius, long duration, Interpolator interpolator) {
+        return start(circle, RADIUS, new CircleResize(circle, 0, radius, duration).setInterpolator(interpolator).setRepeat(true));
+    }
+
+    /**
+     * Drops the marker from above to its position with a bounce, and shows its info window when it lands.
+     *
+     * @param marker   to be dropped
+     * @param duration in milliseconds
+     * @return current instance of this class
+     */
+    public FrameAnimator dropMarker(final Marker marker, long duration) {
+        return start(marker, ANCHOR, new Animation(duration) {
+            @Override
+            protected void onUpdate(float fraction) {
+                marker.setAnchor(0.5f, 1.0f + 14 * Math.max(1 - fraction, 0));
+            }
+
+            @Override
+            protected void onEnd() {
+                marker.showInfoWindow();
+            }
+        }.setInterpolator(new BounceInterpolator()));
+    }
+
+    /**
+     * @return running animation of the property of the target, or null
+     */
+    private Animation find(Object target, int property) {
+        for (Animation animation = running.get(target); animation != null; animation = animation.next)
+            if (animation.property == property)
+                return animation;
+        return null;
+    }
+
+    /**
+     * Removes the animation from the running animations of its target, its slot in the array is left to the caller
+     */
+    private void unlink(Animation animation) {
+        Animation head = running.get(animation.target);
+        if (head == animation) {
+            if (animation.next != null)
+                running.put(animation.target, animation.next);
+            else
+                running.remove(animation.target);
+        } else {
+            for (Animation previous = head; previous != null; previous = previous.next) {
+                if (previous.next == animation) {
+                    previous.next = animation.next;
+                    break;
+                }
+            }
+        }
+        animation.target = animation.next = null;
+    }
+
+    private void schedule() {
+        if (scheduled)
+            return;
+        scheduled = true;
+        if (vsync != null)
+            vsync.post();
+        else
+            handler.postDelayed(tick, FRAME_DELAY);
+    }
+
+    /**
+     * Updates every running animation with the same frame time, and removes the finished and cancelled ones.
+     *
+     * @param frameTime time of the frame in milliseconds, in the time base of {@code SystemClock.uptimeMillis()}
+     */
+    private void doFrame(long frameTime) {
+        scheduled = false;
+        // animations started by a callback of this frame are run from the next frame
+        int running = count;
+        for (int i = 0; i < running; i++) {
+            Animation animation = animations[i];
+            if (animation == null)
+                continue;
+            if (animation.start < 0)
+                animation.start = frameTime;
+            if (!animation.onFrame(frameTime - animation.start) && animations[i] == animation) {
+                animations[i] = null;
+                unlink(animation);
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (animations[i] != null) {
+                animations[kept] = animations[i];
+                animations[kept].index = kept;
+                kept++;
+            }
+        }
+        for (int i = kept; i < count; i++)
+            animations[i] = null;
+        count = kept;
+
+        if (count > 0)
+            schedule();
+    }
+
+    /**
+     * Frames of the display, available from Jelly Bean
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class VsyncClock implements Choreographer.FrameCallback {
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        void post() {
+            choreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            FrameAnimator.this.doFrame(frameTimeNanos / 1000000);
+        }
+    }
+
+    /**
+     * A single animation run by {@link FrameAnimator}. It is driven by the time since its first frame, so every subclass only needs
+     * to apply a fraction to its target.
+     */
+    public abstract static class Animation {
+        private final long duration;
+        private Interpolator interpolator;
+        private boolean repeat;
+
+        /**
+         * Frame time of the first frame, -1 until then
+         */
+        long start = -1;
+
+        /**
+         * Key of the animation while it is running, its index among the running animations, and next running animation of the
+         * same target
+         */
+        Object target;
+        int property, index;
+        Animation next;
+
+        /**
+         * @param duration in milliseconds
+         */
+        protected Animation(long duration) {
+            this.duration = duration;
+        }
+
+        /**
+         * @param interpolator null for linear
+         * @return current instance of this class
+         */
+        public Animation setInterpolator(Interpolator interpolator) {
+            this.interpolator = interpolator;
+            return this;
+        }
+
+        /**
+         * @param repeat true to restart the animation every time it is over, until it is cancelled
+         * @return current instance of this class
+         */
+        public Animation setRepeat(boolean repeat) {
+            this.repeat = repeat;
+            return this;
+        }
+
+        /**
+         * Called once per frame, override it for an animation which is not driven by a fraction of a fixed duration.
+         *
+         * @param elapsed time in milliseconds since the first frame of this animation
+         * @return false if the animation is over
+         */
+        protected boolean onFrame(long elapsed) {
+            float t;
+            if (duration <= 0)
+                t = 1;
+            else if (repeat)
+                t = (float) (elapsed % duration) / duration;
+            else
+                t = Math.min(1f, (float) elapsed / duration);
+            onUpdate(interpolator != null ? interpolator.getInterpolation(t) : t);
+            if (!repeat && t >= 1) {
+                onEnd();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @param fraction interpolated fraction of the animation, from 0 to 1 (may overshoot with some interpolators)
+         */
+        protected abstract void onUpdate(float fraction);
+
+        /**
+         * Called after the last frame, if the animation was not cancelled
+         */
+        protected void onEnd() {
+        }
+
+        /**
+         * Called if the animation is cancelled or replaced by another one before it is over
+         */
+        protected void onCancel() {
+        }
+    }
+
+    private static final class MarkerMove extends Animation {
+        private final Marker marker;
+        private final double fromLatitude, fromLongitude, deltaLatitude, deltaLongitude;
+
+        MarkerMove(Marker marker, LatLng from, LatLng to, long duration) {
+            super(duration);
+            this.marker = marker;
+            fromLatitude = from.latitude;
+            fromLongitude = from.longitude;
+            deltaLatitude = to.latitude - from.latitude;
+            double delta = to.longitude - from.longitude;
+            // the shorter way across the 180th meridian
+            deltaLongitude = delta > 180 ? delta - 360 : delta < -180 ? delta + 360 : delta;
+        }
+
+        @Override
+        protected void onUpdate(float fraction) {
+            marker.setPosition(new LatLng(fromLatitude + deltaLatitude * fraction, fromLongitude + deltaLongitude * fraction));
+        }
+    }
+
+    private static final class CircleResize extends Animation {
+        private final Circle circle;
+        private final double from, delta;
+
+        CircleResize(Circle circle, double from, double to, long duration) {
+            super(duration);
+            this.circle = circle;
+            this.from = from;
+            this.delta = to - from;
+        }
+
+        @Override
+        protected void onUpdate(float fraction) {
+            circle.setRadius(Math.max(0, from + delta * fraction));
+        }
+    }
+}
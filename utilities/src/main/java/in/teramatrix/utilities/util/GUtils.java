@@ -1,12 +1,8 @@
 package in.teramatrix.utilities.util;
 
 import android.location.Location;
-import android.os.Handler;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
-import android.view.animation.BounceInterpolator;
-import android.view.animation.Interpolator;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
@@ -17,6 +13,8 @@ import com.google.android.gms.maps.model.Marker;
 import java.util.ArrayList;
 import java.util.Date;
 
+import in.teramatrix.utilities.model.CoordinateArray;
+
 /**
  * Class has been constructed to collect some common utilities of Google Maps for example moving or animating
  * map camera to particular location or on a group of locations, plotting marker, removing polylines etc.
@@ -26,6 +24,11 @@ import java.util.Date;
  */
 @SuppressWarnings("unused")
 public class GUtils {
+    /**
+     * Mean radius of the earth in kilometers, used in distance calculations
+     */
+    private static final double EARTH_RADIUS = 6371;
+
     /**
      * Method will simply convert a {@link Location} instance to string and log it.
      *
@@ -96,9 +99,152 @@ public class GUtils {
         return earthRadius * y;
     }
 
+    /**
+     * Same as {@code getDistance(LatLng, LatLng)} but over primitive values, to avoid creating {@link LatLng} objects
+     * for every pair in frequently called code.
+     *
+     * @return distance between these two points in kilometers
+     */
+    public static double getDistance(double latA, double lngA, double latB, double lngB) {
+        double a = Math.toRadians(latA);
+        double b = Math.toRadians(latB);
+        return haversine(a, Math.toRadians(lngA), Math.cos(a), b, Math.toRadians(lngB), Math.cos(b));
+    }
+
+    /**
+     * Batch version of {@code getDistance()} to calculate distances from one point to many points. Points are passed as
+     * primitive arrays rather than {@link LatLng} objects and the cosine of origin's latitude is computed only once.
+     * <p>
+     * If {@code fast} is true, equirectangular approximation will be used instead of haversine formula. It needs just one
+     * square root per pair and no other trigonometric call except one cosine per target. Below 70 degree latitude,
+     * relative error of this approximation is less than 0.01% for points within 100 km of the origin and less than 0.2%
+     * within 500 km. Error grows quadratically with the separation, so don't use it for long distances.
+     *
+     * @param lat       latitude of the origin
+     * @param lng       longitude of the origin
+     * @param lats      latitudes of the targets
+     * @param lngs      longitudes of the targets
+     * @param distances output array, distance in kilometers of each target will be written at the same index
+     * @param fast      true to use equirectangular approximation
+     */
+    public static void getDistances(double lat, double lng, double[] lats, double[] lngs, double[] distances, boolean fast) {
+        double latA = Math.toRadians(lat);
+        double lngA = Math.toRadians(lng);
+        double cosA = Math.cos(latA);
+        for (int i = 0; i < lats.length; i++) {
+            double latB = Math.toRadians(lats[i]);
+            double lngB = Math.toRadians(lngs[i]);
+            distances[i] = fast
+                    ? equirectangular(latA, lngA, cosA, latB, lngB, Math.cos(latB))
+                    : haversine(latA, lngA, cosA, latB, lngB, Math.cos(latB));
+        }
+    }
+
+    /**
+     * Same as {@code getDistances(double, double, double[], double[], double[], boolean)} but it will allocate the result array.
+     *
+     * @return distances in kilometers from origin to each target
+     */
+    public static double[] getDistances(double lat, double lng, double[] lats, double[] lngs, boolean fast) {
+        double[] distances = new double[lats.length];
+        getDistances(lat, lng, lats, lngs, distances, fast);
+        return distances;
+    }
+
+    /**
+     * Batch version of {@code getDistance()} to calculate distances from many points to many points. Radians and cosines of all
+     * the points are computed only once and rows of the matrix are calculated in parallel on all cores using {@link Workers}.
+     * See {@code getDistances()} for the error bounds of {@code fast} mode.
+     *
+     * @param fromLats latitudes of the origins
+     * @param fromLngs longitudes of the origins
+     * @param toLats   latitudes of the targets
+     * @param toLngs   longitudes of the targets
+     * @param fast     true to use equirectangular approximation
+     * @return row-major matrix of distances in kilometers, distance from origin i to target j is at {@code i * toLats.length + j}
+     * @throws IllegalArgumentException if the matrix has more than {@code Integer.MAX_VALUE} cells
+     */
+    public static double[] getDistanceMatrix(double[] fromLats, double[] fromLngs, double[] toLats, double[] toLngs,
+                                             final boolean fast) {
+        final int rows = fromLats.length;
+        final int columns = toLats.length;
+        if ((long) rows * columns > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Distance matrix of " + rows + " x " + columns + " points is too large for an array, "
+                    + "split the origins in smaller batches");
+        final double[] latA = toRadians(fromLats);
+        final double[] lngA = toRadians(fromLngs);
+        final double[] cosA = cosines(latA);
+        final double[] latB = toRadians(toLats);
+        final double[] lngB = toRadians(toLngs);
+        final double[] cosB = cosines(latB);
+        final double[] matrix = new double[rows * columns];
+
+        Workers.forRange(rows, Math.max(1, 4096 / Math.max(1, columns)), new Workers.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    int row = i * columns;
+                    for (int j = 0; j < columns; j++) {
+                        matrix[row + j] = fast
+                                ? equirectangular(latA[i], lngA[i], cosA[i], latB[j], lngB[j], cosB[j])
+                                : haversine(latA[i], lngA[i], cosA[i], latB[j], lngB[j], cosB[j]);
+                    }
+                }
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Haversine formula over values already converted in radians, a helper of batch distance methods
+     */
+    private static double haversine(double latA, double lngA, double cosA, double latB, double lngB, double cosB) {
+        double sinLat = Math.sin((latB - latA) / 2);
+        double sinLng = Math.sin((lngB - lngA) / 2);
+        double x = sinLat * sinLat + cosA * cosB * sinLng * sinLng;
+        return EARTH_RADIUS * 2 * Math.atan2(Math.sqrt(x), Math.sqrt(1 - x));
+    }
+
+    /**
+     * Equirectangular approximation over values already converted in radians, a helper of batch distance methods.
+     * Mean of both cosines is used in place of cosine of mean latitude so that no extra trigonometric call is needed.
+     */
+    private static double equirectangular(double latA, double lngA, double cosA, double latB, double lngB, double cosB) {
+        double dLng = lngB - lngA;
+        // alter longitude difference to cater for 180 degree crossings
+        if (dLng > Math.PI) dLng -= 2 * Math.PI;
+        else if (dLng < -Math.PI) dLng += 2 * Math.PI;
+        double x = dLng * (cosA + cosB) * 0.5;
+        double y = latB - latA;
+        return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+    }
+
+    private static double[] toRadians(double[] degrees) {
+        double[] radians = new double[degrees.length];
+        for (int i = 0; i < degrees.length; i++) radians[i] = Math.toRadians(degrees[i]);
+        return radians;
+    }
+
+    private static double[] cosines(double[] radians) {
+        double[] cosines = new double[radians.length];
+        for (int i = 0; i < radians.length; i++) cosines[i] = Math.cos(radians[i]);
+        return cosines;
+    }
+
+    /**
+     * A shortcut of {@code GeoHash.encode()} for a {@link LatLng}. See {@link GeoHash} to decode it, find neighbours or cells around it.
+     *
+     * @param latLng location to be encoded
+     * @param bits   precision of the geohash, multiple of 5 if base32 form is needed
+     * @return geohash as a primitive long
+     */
+    public static long getGeoHash(LatLng latLng, int bits) {
+        return GeoHash.encode(latLng.latitude, latLng.longitude, bits);
+    }
+
     /**
      * A method to check whether the {@link LatLng} belongs to a connected graph of {@link LatLng}s (Geo-Fence)
-     * or not.
+     * or not. If the same geo-fence is to be checked again and again, use {@link PreparedRegion} instead.
      *
      * @param point location to check
      * @param list  list of geo-fence points
@@ -123,35 +269,61 @@ public class GUtils {
         return (crossings % 2 == 1);
     }
 
+    /**
+     * Same as {@code isInRegion(LatLng, ArrayList)} but over a {@link CoordinateArray}, so neither the point nor the geo-fence
+     * needs {@link LatLng} objects.
+     *
+     * @param latitude  latitude of the location to check
+     * @param longitude longitude of the location to check
+     * @param region    geo-fence points
+     * @return true if location is inside the geo-fence otherwise false
+     */
+    public static boolean isInRegion(double latitude, double longitude, CoordinateArray region) {
+        int crossings = 0;
+        int count = region.size();
+        // for each edge
+        for (int i = 0; i < count; i++) {
+            int j = i + 1;
+            if (j >= count) {
+                j = 0;
+            }
+            if (rayCrossesSegment(latitude, longitude, region.getLatitude(i), region.getLongitude(i),
+                    region.getLatitude(j), region.getLongitude(j))) {
+                crossings++;
+            }
+        }
+        // odd number of crossings?
+        return (crossings % 2 == 1);
+    }
+
     /**
      * A helper method of {@code isInRegion}
      */
     private static boolean rayCrossesSegment(LatLng point, LatLng a, LatLng b) {
-        double px = point.longitude;
-        double py = point.latitude;
-        double ax = a.longitude;
-        double ay = a.latitude;
-        double bx = b.longitude;
-        double by = b.latitude;
+        return rayCrossesSegment(point.latitude, point.longitude, a.latitude, a.longitude, b.latitude, b.longitude);
+    }
+
+    /**
+     * A helper method of {@code isInRegion}, over primitive values
+     */
+    private static boolean rayCrossesSegment(double py, double px, double ay, double ax, double by, double bx) {
         if (ay > by) {
-            ax = b.longitude;
-            ay = b.latitude;
-            bx = a.longitude;
-            by = a.latitude;
+            double x = ax, y = ay;
+            ax = bx;
+            ay = by;
+            bx = x;
+            by = y;
         }
         // alter longitude to cater for 180 degree crossings
         if (px < 0) {
             px += 360;
         }
-        ;
         if (ax < 0) {
             ax += 360;
         }
-        ;
         if (bx < 0) {
             bx += 360;
         }
-        ;
 
         if (py == ay || py == by) py += 0.00000001;
         if ((py > by || py < ay) || (px > Math.max(ax, bx))) return false;
@@ -162,6 +334,66 @@ public class GUtils {
         return (blue >= red);
     }
 
+    /**
+     * @param path points of a route or track
+     * @return total length of the path in kilometers
+     */
+    public static double getLength(CoordinateArray path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            length += getDistance(path, i - 1, i);
+        }
+        return length;
+    }
+
+    /**
+     * @param points list of points
+     * @param a      index of starting point
+     * @param b      index of ending point
+     * @return distance between these two points in kilometers
+     */
+    public static double getDistance(CoordinateArray points, int a, int b) {
+        return getDistance(points.getLatitude(a), points.getLongitude(a), points.getLatitude(b), points.getLongitude(b));
+    }
+
+    /**
+     * Decodes an <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">encoded polyline</a>,
+     * for example overview polyline of Directions API, straight into fixed-point coordinates. Polyline values are
+     * degrees * 10^5, so they are converted to E7 without any loss.
+     *
+     * @param encoded polyline string
+     * @return decoded points
+     */
+    public static CoordinateArray decodePolyline(String encoded) {
+        CoordinateArray poly = new CoordinateArray(encoded.length() / 4);
+        int index = 0, len = encoded.length();
+        int lat = 0, lng = 0;
+
+        while (index < len) {
+            int b, shift = 0, result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            int dlat = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
+            lat += dlat;
+
+            shift = 0;
+            result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
+            lng += dlng;
+
+            poly.addE7(lat * 100, lng * 100);
+        }
+        return poly;
+    }
+
     /**
      * Method will move camera to the group of LatLng objects with animation
      *
@@ -245,29 +477,11 @@ public class GUtils {
 
     /**
      * It's a small animation code to bounce selected marker on the map, To make animation,
-     * Bounce Interpolator has been used.
+     * Bounce Interpolator has been used. It runs on the frames of {@link FrameAnimator}, so dropping it again restarts the bounce.
      *
      * @param marker which is to be bounced
      */
     public static void dropPinEffect(final Marker marker) {
-        final Handler handler = new Handler();
-        final long start = SystemClock.uptimeMillis();
-        final long duration = 1000;
-        final Interpolator interpolator = new BounceInterpolator();
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                long elapsed = SystemClock.uptimeMillis() - start;
-                float t = Math.max(1 - interpolator.getInterpolation((float) elapsed / duration), 0);
-                marker.setAnchor(0.5f, 1.0f + 14 * t);
-
-                if (t > 0.0) {
-                    // Post again 15ms later.
-                    handler.postDelayed(this, 15);
-                } else {
-                    marker.showInfoWindow();
-                }
-            }
-        });
+        FrameAnimator.getInstance().dropMarker(marker, 1000);
     }
 }
\ No newline at end of file
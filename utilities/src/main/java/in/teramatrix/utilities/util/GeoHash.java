@@ -0,0 +1,273 @@
+package in.teramatrix.utilities.util;
+
+/**
+ * <a href="https://en.wikipedia.org/wiki/Geohash">Geohash</a> is a spatial key that divides the world in a grid of cells. Longitude
+ * and latitude bits are interleaved, so nearby points usually share a common prefix and all the points of a cell are a continuous range
+ * of keys at any finer precision. It can be used to key caches, to shard work by area or to run prefix-range queries on coordinates.
+ * <p>
+ * Unlike most implementations, this class doesn't work on base32 strings. A geohash is a primitive {@code long} holding {@code bits}
+ * right aligned bits (at most {@link #MAX_BITS}), so nothing is allocated while encoding, decoding or finding neighbours.
+ * Every 5 bits make one character of the usual base32 form, which is available through {@code toBase32()} when needed.
+ */
+@SuppressWarnings("unused")
+public final class GeoHash {
+    /**
+     * Maximum precision supported, equal to 12 base32 characters (cells of a few centimeters)
+     */
+    public static final int MAX_BITS = 60;
+
+    /**
+     * Returned by {@code neighbour()} if there is no cell beyond a pole
+     */
+    public static final long NONE = -1;
+
+    /**
+     * Standard geohash alphabet
+     */
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private GeoHash() {
+    }
+
+    /**
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @param bits      precision of the geohash, from 1 to {@link #MAX_BITS}
+     * @return geohash of the cell containing the location
+     */
+    public static long encode(double latitude, double longitude, int bits) {
+        checkBits(bits);
+        int latBits = bits / 2;
+        int lngBits = bits - latBits;
+        return interleave(quantize(latitude + 90, 180, latBits), quantize(longitude + 180, 360, lngBits), bits);
+    }
+
+    /**
+     * @return latitude of the center of the cell
+     */
+    public static double decodeLatitude(long hash, int bits) {
+        int latBits = bits / 2;
+        return (latIndex(hash, bits) + 0.5) * 180 / (1L << latBits) - 90;
+    }
+
+    /**
+     * @return longitude of the center of the cell
+     */
+    public static double decodeLongitude(long hash, int bits) {
+        int lngBits = bits - bits / 2;
+        return (lngIndex(hash, bits) + 0.5) * 360 / (1L << lngBits) - 180;
+    }
+
+    /**
+     * @param bounds output array of length 4, south, west, north and east end of the cell will be written in the same order
+     */
+    public static void decodeBounds(long hash, int bits, double[] bounds) {
+        int latBits = bits / 2;
+        int lngBits = bits - latBits;
+        double height = 180.0 / (1L << latBits);
+        double width = 360.0 / (1L << lngBits);
+        bounds[0] = latIndex(hash, bits) * height - 90;
+        bounds[1] = lngIndex(hash, bits) * width - 180;
+        bounds[2] = bounds[0] + height;
+        bounds[3] = bounds[1] + width;
+    }
+
+    /**
+     * @param dLat number of cells to move to the north (negative for south)
+     * @param dLng number of cells to move to the east (negative for west), it wraps around the 180 degree meridian
+     * @return geohash of the neighbour cell or {@link #NONE} if it would be beyond a pole
+     */
+    public static long neighbour(long hash, int bits, int dLat, int dLng) {
+        int latBits = bits / 2;
+        int lngBits = bits - latBits;
+        long lat = latIndex(hash, bits) + dLat;
+        if (lat < 0 || lat >= (1L << latBits))
+            return NONE;
+        long lng = (lngIndex(hash, bits) + dLng) & ((1L << lngBits) - 1);
+        return interleave(lat, lng, bits);
+    }
+
+    /**
+     * Eight surrounding cells in the order N, NE, E, SE, S, SW, W, NW. Near a pole some of them are {@link #NONE}.
+     *
+     * @param neighbours output array of length 8
+     */
+    public static void neighbours(long hash, int bits, long[] neighbours) {
+        neighbours[0] = neighbour(hash, bits, 1, 0);
+        neighbours[1] = neighbour(hash, bits, 1, 1);
+        neighbours[2] = neighbour(hash, bits, 0, 1);
+        neighbours[3] = neighbour(hash, bits, -1, 1);
+        neighbours[4] = neighbour(hash, bits, -1, 0);
+        neighbours[5] = neighbour(hash, bits, -1, -1);
+        neighbours[6] = neighbour(hash, bits, 0, -1);
+        neighbours[7] = neighbour(hash, bits, 1, -1);
+    }
+
+    /**
+     * Method will find all the cells overlapping the bounding box of a circle, to look up everything within a radius in a
+     * geohash keyed cache or index. Choose a precision whose cells are not much smaller than the radius, otherwise
+     * number of cells grows quickly.
+     *
+     * @param latitude  center of the circle
+     * @param longitude center of the circle
+     * @param radius    radius of the circle in meters
+     * @param bits      precision of the cells
+     * @param cells     output array, if it is too short only first {@code cells.length} cells will be written
+     * @return total number of covering cells, may be more than the length of output array
+     */
+    public static int cover(double latitude, double longitude, double radius, int bits, long[] cells) {
+        checkBits(bits);
+        int latBits = bits / 2;
+        int lngBits = bits - latBits;
+        long lngCells = 1L << lngBits;
+
+        double dLat = Math.toDegrees(radius / 6371000);
+        double cos = Math.cos(Math.toRadians(latitude));
+        double dLng = cos > 1e-9 ? dLat / cos : 360;
+
+        long south = quantize(Math.max(-90, latitude - dLat) + 90, 180, latBits);
+        long north = quantize(Math.min(90, latitude + dLat) + 90, 180, latBits);
+        long west, columns;
+        if (dLng >= 180) {
+            west = 0;
+            columns = lngCells;
+        } else {
+            west = quantize(wrap(longitude - dLng) + 180, 360, lngBits);
+            long east = quantize(wrap(longitude + dLng) + 180, 360, lngBits);
+            columns = ((east - west) & (lngCells - 1)) + 1;
+        }
+
+        long total = (north - south + 1) * columns;
+        int count = 0;
+        for (long lat = south; lat <= north && count < cells.length; lat++) {
+            for (long c = 0; c < columns && count < cells.length; c++) {
+                cells[count++] = interleave(lat, (west + c) & (lngCells - 1), bits);
+            }
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * All the geohashes of a finer precision which start with this geohash, are in the range of
+     * [{@code rangeStart()}, {@code rangeEnd()}). It is useful to query a sorted store of keys by area.
+     *
+     * @param finerBits precision of the stored keys, not less than {@code bits}
+     * @return first key of the range (inclusive)
+     */
+    public static long rangeStart(long hash, int bits, int finerBits) {
+        return hash << (finerBits - bits);
+    }
+
+    /**
+     * @param finerBits precision of the stored keys, not less than {@code bits}
+     * @return last key of the range (exclusive)
+     */
+    public static long rangeEnd(long hash, int bits, int finerBits) {
+        return (hash + 1) << (finerBits - bits);
+    }
+
+    /**
+     * @return geohash reduced to a coarser precision, i.e. its parent cell
+     */
+    public static long parent(long hash, int bits, int coarserBits) {
+        return hash >>> (bits - coarserBits);
+    }
+
+    /**
+     * @param bits should be a multiple of 5, remaining bits are not included in the string
+     * @return usual base32 form of the geohash
+     */
+    public static String toBase32(long hash, int bits) {
+        int length = bits / 5;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = BASE32[(int) (hash >>> (bits - 5 * (i + 1))) & 31];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param geohash base32 geohash of at most 12 characters
+     * @return geohash with {@code geohash.length() * 5} bits
+     */
+    public static long fromBase32(String geohash) {
+        if (geohash.length() * 5 > MAX_BITS)
+            throw new IllegalArgumentException("Geohash can not be longer than " + MAX_BITS / 5 + " characters");
+        long hash = 0;
+        for (int i = 0; i < geohash.length(); i++) {
+            char c = Character.toLowerCase(geohash.charAt(i));
+            int value = -1;
+            for (int k = 0; k < BASE32.length; k++) {
+                if (BASE32[k] == c) {
+                    value = k;
+                    break;
+                }
+            }
+            if (value < 0)
+                throw new IllegalArgumentException("Invalid geohash character " + geohash.charAt(i));
+            hash = (hash << 5) | value;
+        }
+        return hash;
+    }
+
+    private static void checkBits(int bits) {
+        if (bits < 1 || bits > MAX_BITS)
+            throw new IllegalArgumentException("Bits should be in the range of 1 to " + MAX_BITS);
+    }
+
+    /**
+     * @return index of the cell in a single dimension
+     */
+    private static long quantize(double value, double range, int bits) {
+        long cells = 1L << bits;
+        long index = (long) (value / range * cells);
+        return index < 0 ? 0 : index >= cells ? cells - 1 : index;
+    }
+
+    private static double wrap(double longitude) {
+        return longitude < -180 ? longitude + 360 : longitude >= 180 ? longitude - 360 : longitude;
+    }
+
+    /**
+     * Longitude takes the most significant bit, then latitude and so on alternately
+     */
+    private static long interleave(long lat, long lng, int bits) {
+        return (bits & 1) == 0
+                ? (spread(lng) << 1) | spread(lat)
+                : spread(lng) | (spread(lat) << 1);
+    }
+
+    private static long latIndex(long hash, int bits) {
+        return (bits & 1) == 0 ? compact(hash) : compact(hash >>> 1);
+    }
+
+    private static long lngIndex(long hash, int bits) {
+        return (bits & 1) == 0 ? compact(hash >>> 1) : compact(hash);
+    }
+
+    /**
+     * Spreads lower 32 bits of the value to even positions of a long
+     */
+    private static long spread(long x) {
+        x &= 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * Reverse of {@code spread()}, collects even positioned bits of the value
+     */
+    private static long compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return x;
+    }
+}
@@ -0,0 +1,267 @@
+package in.teramatrix.utilities.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+
+import in.teramatrix.utilities.model.CoordinateArray;
+
+/**
+ * A geo-fence that has been prepared once for fast and repeated point-in-region tests. {@code GUtils.isInRegion()} scans every
+ * edge of the geo-fence and adjusts longitudes of every edge on every call. This class does all of that only once, in the constructor:
+ * <ul type="square">
+ *     <li>Longitudes are measured eastwards from 180 degrees west of the first vertex, so a geo-fence across 0 degree or the
+ *     180th meridian stays in one piece, and each edge is stored bottom to top</li>
+ *     <li>Slope of each edge is pre-calculated</li>
+ *     <li>A bounding box is calculated to reject far points without touching any edge</li>
+ *     <li>Edges are indexed in horizontal bands of latitude, so only the edges at the latitude of the point are tested</li>
+ * </ul>
+ * Ray casting rules are exactly the same as {@code GUtils.isInRegion()}, so both will give the same answer for a point, except
+ * for a geo-fence across 0 degree which {@code GUtils.isInRegion()} splits at the two ends of its longitude range.
+ * Instances are immutable and can be shared between threads.
+ */
+@SuppressWarnings("unused")
+public class PreparedRegion {
+    /**
+     * Same nudge that {@code rayCrossesSegment()} applies when a point lies at the latitude of a vertex
+     */
+    private static final double EPSILON = 0.00000001;
+
+    /**
+     * Maximum number of latitude bands in the edge index
+     */
+    private static final int MAX_BANDS = 1024;
+
+    /**
+     * Longitudes of the edges and the bounding box are measured eastwards from here, in the range of [0, 360)
+     */
+    private final double origin;
+
+    /**
+     * Bottom (a) and top (b) end of each edge
+     */
+    private final double[] ax, ay, bx, by;
+
+    /**
+     * Pre-calculated slope and longitude range of each edge
+     */
+    private final double[] slope, minX, maxX;
+
+    /**
+     * Bounding box of the region
+     */
+    private final double minLatitude, maxLatitude, minLongitude, maxLongitude;
+
+    /**
+     * Height of a single band in degrees
+     */
+    private final double bandHeight;
+
+    /**
+     * Edges of band i are {@code bandEdges[bandStart[i]]} to {@code bandEdges[bandStart[i + 1] - 1]}
+     */
+    private final int[] bandStart, bandEdges;
+
+    /**
+     * @param list list of geo-fence points, same as {@code GUtils.isInRegion()}
+     */
+    public PreparedRegion(List<LatLng> list) {
+        this(latitudesOf(list), longitudesOf(list));
+    }
+
+    /**
+     * @param region geo-fence points in fixed-point coordinates
+     */
+    public PreparedRegion(CoordinateArray region) {
+        this(region.getLatitudes(), region.getLongitudes());
+    }
+
+    /**
+     * @param latitudes  latitudes of geo-fence points
+     * @param longitudes longitudes of geo-fence points
+     */
+    public PreparedRegion(double[] latitudes, double[] longitudes) {
+        int count = latitudes.length;
+        if (count != longitudes.length)
+            throw new IllegalArgumentException("Latitudes and longitudes must be of same length");
+
+        ax = new double[count];
+        ay = new double[count];
+        bx = new double[count];
+        by = new double[count];
+        slope = new double[count];
+        minX = new double[count];
+        maxX = new double[count];
+        origin = count > 0 ? longitudes[0] - 180 : 0;
+
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1 < count) ? i + 1 : 0;
+            double x1 = frame(longitudes[i]), y1 = latitudes[i];
+            double x2 = frame(longitudes[j]), y2 = latitudes[j];
+            if (y1 > y2) {
+                ax[i] = x2; ay[i] = y2;
+                bx[i] = x1; by[i] = y1;
+            } else {
+                ax[i] = x1; ay[i] = y1;
+                bx[i] = x2; by[i] = y2;
+            }
+            slope[i] = (ax[i] != bx[i]) ? ((by[i] - ay[i]) / (bx[i] - ax[i])) : Float.MAX_VALUE;
+            minX[i] = Math.min(ax[i], bx[i]);
+            maxX[i] = Math.max(ax[i], bx[i]);
+
+            minLat = Math.min(minLat, y1);
+            maxLat = Math.max(maxLat, y1);
+            minLng = Math.min(minLng, x1);
+            maxLng = Math.max(maxLng, x1);
+        }
+        minLatitude = minLat;
+        maxLatitude = maxLat;
+        minLongitude = minLng;
+        maxLongitude = maxLng;
+
+        // building the edge index, an edge is put in every band its latitude range overlaps
+        int bands = Math.max(1, Math.min(count, MAX_BANDS));
+        bandHeight = (count > 0 && maxLat > minLat) ? (maxLat - minLat) / bands : 1;
+        bandStart = new int[bands + 1];
+        for (int i = 0; i < count; i++)
+            for (int b = band(ay[i]), last = band(by[i]); b <= last; b++)
+                bandStart[b + 1]++;
+        for (int b = 0; b < bands; b++)
+            bandStart[b + 1] += bandStart[b];
+        bandEdges = new int[bandStart[bands]];
+        int[] fill = new int[bands];
+        for (int i = 0; i < count; i++)
+            for (int b = band(ay[i]), last = band(by[i]); b <= last; b++)
+                bandEdges[bandStart[b] + fill[b]++] = i;
+    }
+
+    /**
+     * @param point location to check
+     * @return true if location(point) is inside the geo-fence otherwise false
+     */
+    public boolean contains(LatLng point) {
+        return contains(point.latitude, point.longitude);
+    }
+
+    /**
+     * @param latitude  latitude of the location to check
+     * @param longitude longitude of the location to check
+     * @return true if location is inside the geo-fence otherwise false
+     */
+    public boolean contains(double latitude, double longitude) {
+        double px = frame(longitude);
+        double py = latitude;
+        if (py < minLatitude || py > maxLatitude || px < minLongitude || px > maxLongitude)
+            return false;
+
+        int crossings = 0;
+        int b = band(py);
+        for (int k = bandStart[b], end = bandStart[b + 1]; k < end; k++) {
+            if (rayCrossesEdge(bandEdges[k], px, py)) {
+                crossings++;
+            }
+        }
+        // odd number of crossings?
+        return (crossings % 2 == 1);
+    }
+
+    /**
+     * Batch version of {@code contains()}. Large batches will be split across all the cores using {@link Workers}.
+     *
+     * @param latitudes  latitudes of the locations to check
+     * @param longitudes longitudes of the locations to check
+     * @param results    output array, true will be written at the index of each location that is inside the geo-fence
+     * @return number of locations inside the geo-fence
+     */
+    public int contains(final double[] latitudes, final double[] longitudes, final boolean[] results) {
+        Workers.forRange(latitudes.length, 1024, new Workers.Range() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    results[i] = contains(latitudes[i], longitudes[i]);
+            }
+        });
+        int inside = 0;
+        for (int i = 0; i < latitudes.length; i++)
+            if (results[i]) inside++;
+        return inside;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    /**
+     * @return west end of the bounding box, in the range of [0, 360)
+     */
+    public double getMinLongitude() {
+        return range(minLongitude + origin);
+    }
+
+    /**
+     * @return east end of the bounding box, in the range of [0, 360). It is less than the west end if the box crosses 0 degree.
+     */
+    public double getMaxLongitude() {
+        return range(maxLongitude + origin);
+    }
+
+    /**
+     * Same as {@code GUtils.rayCrossesSegment()} but over pre-calculated values of the edge
+     */
+    private boolean rayCrossesEdge(int i, double px, double py) {
+        if (py == ay[i] || py == by[i]) py += EPSILON;
+        if ((py > by[i] || py < ay[i]) || (px > maxX[i])) return false;
+        if (px < minX[i]) return true;
+
+        double blue = (ax[i] != px) ? ((py - ay[i]) / (px - ax[i])) : Float.MAX_VALUE;
+        return (blue >= slope[i]);
+    }
+
+    /**
+     * @return index of the band in which the latitude lies, clamped to the bands available
+     */
+    private int band(double latitude) {
+        int b = (int) ((latitude - minLatitude) / bandHeight);
+        return b < 0 ? 0 : b >= bandStart.length - 1 ? bandStart.length - 2 : b;
+    }
+
+    /**
+     * @return longitude measured eastwards from {@code origin}, in the range of [0, 360)
+     */
+    private double frame(double longitude) {
+        return range(longitude - origin);
+    }
+
+    /**
+     * @return longitude in the range of [0, 360)
+     */
+    private static double range(double longitude) {
+        double x = longitude % 360;
+        return x < 0 ? Math.min(x + 360, Math.nextAfter(360, 0)) : x;
+    }
+
+    /**
+     * Alter longitude to cater for 180 degree crossings, same as {@code GUtils.rayCrossesSegment()}
+     */
+    static double normalize(double longitude) {
+        return longitude < 0 ? longitude + 360 : longitude;
+    }
+
+    private static double[] latitudesOf(List<LatLng> list) {
+        double[] latitudes = new double[list.size()];
+        for (int i = 0; i < latitudes.length; i++) latitudes[i] = list.get(i).latitude;
+        return latitudes;
+    }
+
+    private static double[] longitudesOf(List<LatLng> list) {
+        double[] longitudes = new double[list.size()];
+        for (int i = 0; i < longitudes.length; i++) longitudes[i] = list.get(i).longitude;
+        return longitudes;
+    }
+}
@@ -0,0 +1,119 @@
+package in.teramatrix.utilities.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch spatial join of points to zones, to find out in which zone each of millions of recorded points lies. Zones are indexed
+ * once in a {@link ZoneIndex} and points are split across all the cores using {@link Workers}, so each point is tested only
+ * against the few zones around it instead of all of them.
+ * <pre>
+ * int[] zoneOfPoint = new SpatialJoin(zones).join(latitudes, longitudes);
+ * </pre>
+ * An instance can be reused for as many batches as needed and can be shared between threads.
+ */
+@SuppressWarnings("unused")
+public class SpatialJoin {
+    /**
+     * Result for a point that is not inside any of the zones
+     */
+    public static final int NO_ZONE = -1;
+
+    /**
+     * Zones to be joined with
+     */
+    private final PreparedRegion[] zones;
+
+    /**
+     * Spatial index over the bounding boxes of the zones, a zone across 0 degree is registered at both ends of the longitude range
+     */
+    private final ZoneIndex index;
+
+    /**
+     * @param zones polygons to be joined with, position of a zone in this list is its id in the result
+     */
+    public SpatialJoin(List<PreparedRegion> zones) {
+        this.zones = zones.toArray(new PreparedRegion[zones.size()]);
+        int size = this.zones.length;
+        double[] minLats = new double[size], maxLats = new double[size];
+        double[] minLngs = new double[size], maxLngs = new double[size];
+        for (int i = 0; i < size; i++) {
+            minLats[i] = this.zones[i].getMinLatitude();
+            maxLats[i] = this.zones[i].getMaxLatitude();
+            minLngs[i] = this.zones[i].getMinLongitude();
+            maxLngs[i] = this.zones[i].getMaxLongitude();
+        }
+        this.index = new ZoneIndex(minLats, maxLats, minLngs, maxLngs);
+    }
+
+    /**
+     * A shortcut to prepare zones from raw geo-fence points, same as {@code GUtils.isInRegion()} takes.
+     *
+     * @param polygons list of geo-fences
+     * @return an instance ready to join
+     */
+    public static SpatialJoin ofPolygons(List<? extends List<LatLng>> polygons) {
+        List<PreparedRegion> zones = new ArrayList<>(polygons.size());
+        for (List<LatLng> polygon : polygons) zones.add(new PreparedRegion(polygon));
+        return new SpatialJoin(zones);
+    }
+
+    /**
+     * @param latitudes  latitudes of the points
+     * @param longitudes longitudes of the points
+     * @return id of the zone for each point, {@link #NO_ZONE} if the point is not inside any zone
+     */
+    public int[] join(double[] latitudes, double[] longitudes) {
+        int[] result = new int[latitudes.length];
+        join(latitudes, longitudes, result);
+        return result;
+    }
+
+    /**
+     * Same as {@code join(double[], double[])} but result will be written in the given array. If zones overlap, the point
+     * will be assigned to the zone that comes first in the list.
+     *
+     * @param latitudes  latitudes of the points
+     * @param longitudes longitudes of the points
+     * @param result     output array, id of the zone will be written at the index of each point
+     */
+    public void join(final double[] latitudes, final double[] longitudes, final int[] result) {
+        if (latitudes.length != longitudes.length || result.length < latitudes.length)
+            throw new IllegalArgumentException("Latitudes, longitudes and result must be of same length");
+
+        Workers.forRange(latitudes.length, 4096, new Workers.Range() {
+            @Override
+            public void run(int from, int to) {
+                // one buffer per chunk, it is reused for all the points of the chunk
+                int[] candidates = new int[index.getMaxCandidates()];
+                for (int i = from; i < to; i++) {
+                    result[i] = zoneOf(latitudes[i], longitudes[i], candidates);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return id of the zone containing the point, lowest id wins if zones overlap
+     */
+    private int zoneOf(double latitude, double longitude, int[] candidates) {
+        int zone = NO_ZONE;
+        int count = index.query(latitude, longitude, candidates);
+        for (int k = 0; k < count; k++) {
+            int id = candidates[k];
+            if ((zone == NO_ZONE || id < zone) && zones[id].contains(latitude, longitude)) {
+                zone = id;
+            }
+        }
+        return zone;
+    }
+
+    /**
+     * @return number of zones being joined with
+     */
+    public int getZoneCount() {
+        return zones.length;
+    }
+}
@@ -0,0 +1,552 @@
+package in.teramatrix.utilities.util;
+
+import android.location.Location;
+
+import java.util.Arrays;
+
+/**
+ * A compact binary format for recorded tracks, to store or upload them in a fraction of their raw size. Locations are split in
+ * fixed blocks and every block is stored column by column: time, latitude, longitude, accuracy, speed, bearing and the flags of
+ * the values a location has. In a column, each value is stored as difference from the previous one, packed as a
+ * <a href="https://developers.google.com/protocol-buffers/docs/encoding#signed-integers">zigzag varint</a>. Time and coordinates
+ * change at a nearly constant rate, so for these the difference of differences is stored, which is mostly a single byte.
+ * <p>
+ * Values are stored in fixed-point: time in milliseconds, coordinates in 10^-{@code digits} degrees (6 digits by default, about
+ * 11 cm), accuracy and speed in tenths and bearing in tenths of a degree. A missing accuracy, speed or bearing repeats the previous
+ * value, so it costs a single byte, and is told apart by its flag. A location of a driving track takes about 9 bytes,
+ * roughly 4 times less than the 36 bytes of its raw values (a long, two doubles and three floats). Most of it is taken by
+ * the noise of coordinates, accuracy and speed, which no delta can remove, and the output can still be gzipped further for upload.
+ * <p>
+ * Layout is a header, an index with the first time and the offset of every block, and then the blocks:
+ * <pre>
+ * magic (int) | version (byte) | digits (byte) | block size (int) | count (int) | blocks (int)
+ * index : first time (long) | offset (int), for every block
+ * block : count | length of each of the 7 columns | 7 columns, all as varints
+ * </pre>
+ * Every block can be decoded alone, so {@link Decoder} can seek to a time through the index. Decoder reads each column from its
+ * own position in the data, so fixes are streamed one by one without building any object per fix.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class TrackCodec {
+    private static final int MAGIC = 0x54524331; // TRC1
+    private static final int VERSION = 2;
+
+    /**
+     * Size of the header and of a single entry of the index in bytes
+     */
+    private static final int HEADER_SIZE = 18, INDEX_ENTRY_SIZE = 12;
+
+    /**
+     * Number of columns in a block, version 1 had no column of flags
+     */
+    private static final int COLUMNS = 7;
+    private static final int TIME = 0, LATITUDE = 1, LONGITUDE = 2, ACCURACY = 3, SPEED = 4, BEARING = 5, FLAGS = 6;
+
+    /**
+     * Flags of the values a location has
+     */
+    public static final int HAS_ACCURACY = 1, HAS_SPEED = 2, HAS_BEARING = 4;
+    public static final int HAS_ALL = HAS_ACCURACY | HAS_SPEED | HAS_BEARING;
+
+    /**
+     * Locations per block by default
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private TrackCodec() {
+    }
+
+    /**
+     * Encodes locations in the order they are added. Columns of the current block are encoded as locations are added, so memory
+     * needed is about the size of the output.
+     * <pre>
+     * TrackCodec.Encoder encoder = new TrackCodec.Encoder();
+     * for (Location location : locations) encoder.add(location);
+     * byte[] data = encoder.toByteArray();
+     * </pre>
+     */
+    public static class Encoder {
+        private final int blockSize;
+        private final int digits;
+        private final double scale;
+
+        /**
+         * Encoded blocks, and first time and offset of each of them
+         */
+        private final Bytes blocks = new Bytes(1024);
+        private long[] firstTimes = new long[16];
+        private int[] offsets = new int[16];
+        private int blockCount;
+        private int count;
+
+        /**
+         * Columns of the current block, and the state of the differences
+         */
+        private final Bytes[] columns = new Bytes[COLUMNS];
+        private final long[] previous = new long[COLUMNS];
+        private final long[] previousDelta = new long[COLUMNS];
+        private int blockLength;
+
+        public Encoder() {
+            this(DEFAULT_BLOCK_SIZE, 6);
+        }
+
+        /**
+         * @param blockSize number of locations in a block, smaller blocks make seeking faster but the output a little larger
+         * @param digits    decimal digits of coordinates to be kept, from 5 (about 1 m) to 7 (about 1 cm)
+         */
+        public Encoder(int blockSize, int digits) {
+            if (blockSize <= 0)
+                throw new IllegalArgumentException("Block size should be more than zero");
+            if (digits < 5 || digits > 7)
+                throw new IllegalArgumentException("Digits should be in the range of 5 to 7");
+            this.blockSize = blockSize;
+            this.digits = digits;
+            this.scale = Math.pow(10, digits);
+            for (int i = 0; i < COLUMNS; i++)
+                columns[i] = new Bytes(blockSize * 2);
+        }
+
+        public Encoder add(Location location) {
+            int flags = (location.hasAccuracy() ? HAS_ACCURACY : 0) | (location.hasSpeed() ? HAS_SPEED : 0)
+                    | (location.hasBearing() ? HAS_BEARING : 0);
+            return add(location.getTime(), location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), location.getSpeed(), location.getBearing(), flags);
+        }
+
+        /**
+         * Adds a location which has accuracy, speed and bearing.
+         *
+         * @param time      in milliseconds
+         * @param latitude  in degrees
+         * @param longitude in degrees
+         * @param accuracy  in meters
+         * @param speed     in m/s
+         * @param bearing   in degrees
+         * @return current instance of this class
+         */
+        public Encoder add(long time, double latitude, double longitude, float accuracy, float speed, float bearing) {
+            return add(time, latitude, longitude, accuracy, speed, bearing, HAS_ALL);
+        }
+
+        /**
+         * @param time      in milliseconds
+         * @param latitude  in degrees
+         * @param longitude in degrees
+         * @param accuracy  in meters, ignored without {@link #HAS_ACCURACY}
+         * @param speed     in m/s, ignored without {@link #HAS_SPEED}
+         * @param bearing   in degrees, ignored without {@link #HAS_BEARING}
+         * @param flags     values the location has, any of {@link #HAS_ACCURACY}, {@link #HAS_SPEED} and {@link #HAS_BEARING}
+         * @return current instance of this class
+         */
+        public Encoder add(long time, double latitude, double longitude, float accuracy, float speed, float bearing, int flags) {
+            if (blockLength == 0) {
+                if (blockCount == firstTimes.length) {
+                    firstTimes = Arrays.copyOf(firstTimes, blockCount * 2);
+                    offsets = Arrays.copyOf(offsets, blockCount * 2);
+                }
+                firstTimes[blockCount] = time;
+                offsets[blockCount] = blocks.length;
+                Arrays.fill(previous, 0);
+                Arrays.fill(previousDelta, 0);
+            }
+
+            putSecondDelta(TIME, time);
+            putSecondDelta(LATITUDE, Math.round(latitude * scale));
+            putSecondDelta(LONGITUDE, Math.round(longitude * scale));
+            // a missing value repeats the previous one, a difference of zero
+            putDelta(ACCURACY, (flags & HAS_ACCURACY) != 0 ? Math.round(accuracy * 10) : previous[ACCURACY]);
+            putDelta(SPEED, (flags & HAS_SPEED) != 0 ? Math.round(speed * 10) : previous[SPEED]);
+            putDelta(FLAGS, flags & HAS_ALL);
+
+            // shortest way round, so 359 to 1 degree is a difference of 2 degrees
+            long tenths = Math.round(bearing * 10) % 3600;
+            if (tenths < 0) tenths += 3600;
+            if ((flags & HAS_BEARING) == 0) tenths = previous[BEARING];
+            long delta = tenths - previous[BEARING];
+            if (delta > 1800) delta -= 3600;
+            else if (delta <= -1800) delta += 3600;
+            columns[BEARING].putVarLong(zigzag(delta));
+            previous[BEARING] = tenths;
+
+            count++;
+            if (++blockLength == blockSize)
+                finishBlock();
+            return this;
+        }
+
+        /**
+         * @return number of locations added
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return encoded track, encoder can still be used to add more locations
+         */
+        public byte[] toByteArray() {
+            if (blockLength > 0)
+                finishBlock();
+
+            int indexSize = blockCount * INDEX_ENTRY_SIZE;
+            Bytes out = new Bytes(HEADER_SIZE + indexSize + blocks.length);
+            out.putInt(MAGIC);
+            out.put(VERSION);
+            out.put(digits);
+            out.putInt(blockSize);
+            out.putInt(count);
+            out.putInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                out.putLong(firstTimes[i]);
+                out.putInt(offsets[i]);
+            }
+            out.put(blocks.data, 0, blocks.length);
+            return out.toByteArray();
+        }
+
+        private void putDelta(int column, long value) {
+            columns[column].putVarLong(zigzag(value - previous[column]));
+            previous[column] = value;
+        }
+
+        private void putSecondDelta(int column, long value) {
+            long delta = value - previous[column];
+            columns[column].putVarLong(zigzag(delta - previousDelta[column]));
+            previous[column] = value;
+            previousDelta[column] = delta;
+        }
+
+        private void finishBlock() {
+            blocks.putVarLong(blockLength);
+            for (Bytes column : columns)
+                blocks.putVarLong(column.length);
+            for (Bytes column : columns) {
+                blocks.put(column.data, 0, column.length);
+                column.length = 0;
+            }
+            blockCount++;
+            blockLength = 0;
+        }
+    }
+
+    /**
+     * Streams the locations of an encoded track. Values of the current location are held in primitive fields, so nothing is
+     * allocated while iterating. A decoder should be used by a single thread.
+     * <pre>
+     * TrackCodec.Decoder decoder = new TrackCodec.Decoder(data);
+     * decoder.seek(from);
+     * while (decoder.next() &amp;&amp; decoder.getTime() &lt;= to) {
+     *     polyline.add(decoder.getLatitude(), decoder.getLongitude());
+     * }
+     * </pre>
+     */
+    public static class Decoder {
+        private final byte[] data;
+        private final double scale;
+        private final int count;
+        private final int blockCount;
+
+        /**
+         * Number of columns in a block of this version
+         */
+        private final int columns;
+
+        /**
+         * Offset of the first block in the data
+         */
+        private final int dataStart;
+
+        /**
+         * Next block to be opened, and locations remaining in the current one
+         */
+        private int nextBlock;
+        private int remaining;
+
+        /**
+         * Read position of each column, and the state of the differences
+         */
+        private final int[] positions = new int[COLUMNS];
+        private final long[] values = new long[COLUMNS];
+        private final long[] deltas = new long[COLUMNS];
+
+        /**
+         * State before the last read, to step back one location while seeking
+         */
+        private final int[] savedPositions = new int[COLUMNS];
+        private final long[] savedValues = new long[COLUMNS];
+        private final long[] savedDeltas = new long[COLUMNS];
+
+        /**
+         * @param data encoded track, as returned by {@code Encoder.toByteArray()}
+         */
+        public Decoder(byte[] data) {
+            this.data = data;
+            if (data.length < HEADER_SIZE || readInt(0) != MAGIC)
+                throw new IllegalArgumentException("Not an encoded track");
+            if (data[4] < 1 || data[4] > VERSION)
+                throw new IllegalArgumentException("Unsupported version " + data[4]);
+            this.columns = data[4] == 1 ? COLUMNS - 1 : COLUMNS;
+            this.scale = Math.pow(10, data[5]);
+            this.count = readInt(10);
+            this.blockCount = readInt(14);
+            this.dataStart = HEADER_SIZE + blockCount * INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * @return total number of locations in the track
+         */
+        public int size() {
+            return count;
+        }
+
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        /**
+         * Moves to the next location.
+         *
+         * @return false if there is no more location
+         */
+        public boolean next() {
+            if (remaining == 0) {
+                if (nextBlock == blockCount)
+                    return false;
+                openBlock(nextBlock++);
+            }
+            remaining--;
+
+            readSecondDelta(TIME);
+            readSecondDelta(LATITUDE);
+            readSecondDelta(LONGITUDE);
+            readDelta(ACCURACY);
+            readDelta(SPEED);
+            readDelta(BEARING);
+            if (columns > FLAGS)
+                readDelta(FLAGS);
+            else
+                values[FLAGS] = HAS_ALL;
+            long bearing = values[BEARING] % 3600;
+            values[BEARING] = bearing < 0 ? bearing + 3600 : bearing;
+            return true;
+        }
+
+        /**
+         * Moves back to the start of the track.
+         */
+        public void rewind() {
+            nextBlock = 0;
+            remaining = 0;
+        }
+
+        /**
+         * Positions the decoder so that the next call of {@code next()} gives the first location at or after the time. The block is
+         * found by binary search in the index, so times should not decrease from one location to the next.
+         *
+         * @param time in milliseconds
+         */
+        public void seek(long time) {
+            int low = 0, high = blockCount - 1, block = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (readLong(HEADER_SIZE + mid * INDEX_ENTRY_SIZE) <= time) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            nextBlock = block;
+            remaining = 0;
+            if (blockCount == 0)
+                return;
+
+            // scanning the block, and stepping one location back by keeping the state before each read
+            openBlock(nextBlock++);
+            while (remaining > 0) {
+                int remaining = this.remaining;
+                System.arraycopy(positions, 0, savedPositions, 0, COLUMNS);
+                System.arraycopy(values, 0, savedValues, 0, COLUMNS);
+                System.arraycopy(deltas, 0, savedDeltas, 0, COLUMNS);
+                next();
+                if (getTime() >= time) {
+                    this.remaining = remaining;
+                    System.arraycopy(savedPositions, 0, positions, 0, COLUMNS);
+                    System.arraycopy(savedValues, 0, values, 0, COLUMNS);
+                    System.arraycopy(savedDeltas, 0, deltas, 0, COLUMNS);
+                    return;
+                }
+            }
+        }
+
+        public long getTime() {
+            return values[TIME];
+        }
+
+        public double getLatitude() {
+            return values[LATITUDE] / scale;
+        }
+
+        public double getLongitude() {
+            return values[LONGITUDE] / scale;
+        }
+
+        public float getAccuracy() {
+            return values[ACCURACY] / 10f;
+        }
+
+        public float getSpeed() {
+            return values[SPEED] / 10f;
+        }
+
+        public float getBearing() {
+            return values[BEARING] / 10f;
+        }
+
+        /**
+         * @return values the current location has, any of {@link #HAS_ACCURACY}, {@link #HAS_SPEED} and {@link #HAS_BEARING}
+         */
+        public int getFlags() {
+            return (int) values[FLAGS];
+        }
+
+        public boolean hasAccuracy() {
+            return (values[FLAGS] & HAS_ACCURACY) != 0;
+        }
+
+        public boolean hasSpeed() {
+            return (values[FLAGS] & HAS_SPEED) != 0;
+        }
+
+        public boolean hasBearing() {
+            return (values[FLAGS] & HAS_BEARING) != 0;
+        }
+
+        /**
+         * Copies the current location into a location, to reuse a single {@link Location} while iterating. Location is reset
+         * first, so accuracy, speed and bearing are set only if the current location has them.
+         *
+         * @param location to be filled
+         */
+        public void copyTo(Location location) {
+            String provider = location.getProvider();
+            location.reset();
+            location.setProvider(provider);
+            location.setTime(getTime());
+            location.setLatitude(getLatitude());
+            location.setLongitude(getLongitude());
+            if (hasAccuracy())
+                location.setAccuracy(getAccuracy());
+            if (hasSpeed())
+                location.setSpeed(getSpeed());
+            if (hasBearing())
+                location.setBearing(getBearing());
+        }
+
+        private void openBlock(int block) {
+            positions[0] = dataStart + readInt(HEADER_SIZE + block * INDEX_ENTRY_SIZE + 8);
+            remaining = (int) readVarLong(0);
+            // lengths of the columns are read in the array of differences, which is cleared afterwards
+            long[] lengths = deltas;
+            for (int i = 0; i < columns; i++)
+                lengths[i] = readVarLong(0);
+            int position = positions[0];
+            for (int i = 0; i < columns; i++) {
+                positions[i] = position;
+                position += (int) lengths[i];
+            }
+            Arrays.fill(values, 0);
+            Arrays.fill(deltas, 0);
+        }
+
+        private void readDelta(int column) {
+            values[column] += unzigzag(readVarLong(column));
+        }
+
+        private void readSecondDelta(int column) {
+            deltas[column] += unzigzag(readVarLong(column));
+            values[column] += deltas[column];
+        }
+
+        private long readVarLong(int column) {
+            int position = positions[column];
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            positions[column] = position;
+            return value;
+        }
+
+        private int readInt(int offset) {
+            return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                    | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        }
+
+        private long readLong(int offset) {
+            return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xFFFFFFFFL);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A growable byte array, not synchronized unlike {@link java.io.ByteArrayOutputStream}
+     */
+    private static class Bytes {
+        byte[] data;
+        int length;
+
+        Bytes(int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        void put(int b) {
+            if (length == data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            data[length++] = (byte) b;
+        }
+
+        void put(byte[] bytes, int offset, int count) {
+            if (length + count > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+            System.arraycopy(bytes, offset, data, length, count);
+            length += count;
+        }
+
+        void putInt(int value) {
+            put(value >>> 24);
+            put(value >>> 16);
+            put(value >>> 8);
+            put(value);
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
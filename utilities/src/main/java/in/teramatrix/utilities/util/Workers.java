@@ -0,0 +1,163 @@
+package in.teramatrix.utilities.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A small shared pool of worker threads, one per available core, used by the batch geometry utilities of this library to split
+ * an index range across all the cores of the device. Caller thread always takes a share of the work itself and waits for the
+ * rest, so a call to {@code forRange()} behaves just like a plain for loop, only faster.
+ * <p>
+ * If {@code forRange()} is called from one of these workers (nested batch), the range will be processed inline to avoid
+ * starving the pool.
+ */
+@SuppressWarnings("unused")
+public final class Workers {
+    /**
+     * Number of threads in the pool, same as the number of available cores
+     */
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * A range is split in this many chunks per thread, so that threads can balance uneven work among themselves
+     */
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    /**
+     * Lazily created pool, see {@code getPool()}
+     */
+    private static ExecutorService pool;
+
+    private Workers() {
+    }
+
+    /**
+     * A chunk of the whole range that is to be processed by a single thread.
+     */
+    public interface Range {
+        /**
+         * @param from first index of the chunk (inclusive)
+         * @param to   last index of the chunk (exclusive)
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * @return number of threads the range will be split across
+     */
+    public static int getParallelism() {
+        return THREADS;
+    }
+
+    /**
+     * Method will split {@code [0, count)} into small chunks and process them on all cores. Every thread (including the caller)
+     * keeps taking the next chunk until nothing is left, so a thread that gets cheap chunks will simply process more of them.
+     * It will return only when every chunk has been processed. If any chunk throws an exception or an error, it will be re-thrown
+     * here in the caller thread, a checked exception will be wrapped in a {@code RuntimeException}.
+     *
+     * @param count    total number of indices to be processed
+     * @param minChunk minimum number of indices that are worth a thread, smaller ranges will be processed inline
+     * @param range    work to be done for each chunk
+     */
+    public static void forRange(final int count, int minChunk, final Range range) {
+        final int chunks = Math.min(THREADS * CHUNKS_PER_THREAD, count / Math.max(1, minChunk));
+        if (chunks <= 1 || THREADS == 1 || Thread.currentThread() instanceof Worker) {
+            if (count > 0) range.run(0, count);
+            return;
+        }
+
+        final int chunk = (count + chunks - 1) / chunks;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int from;
+                    while (failure.get() == null && (from = next.getAndIncrement() * chunk) < count) {
+                        range.run(from, Math.min(count, from + chunk));
+                    }
+                } catch (Throwable e) {
+                    // errors too, otherwise an error in a helper would be lost with its pool thread
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+
+        int helpers = Math.min(THREADS, chunks) - 1;
+        final CountDownLatch latch = new CountDownLatch(helpers);
+        ExecutorService executor = getPool();
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(new Helper(task, latch));
+        }
+
+        // caller thread takes chunks as well
+        task.run();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers", e);
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e != null)
+            throw new RuntimeException(e);
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Worker(runnable, "GUtils-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the shared task in a pool thread and counts down when it is over
+     */
+    private static final class Helper implements Runnable {
+        private final Runnable task;
+        private final CountDownLatch latch;
+
+        Helper(Runnable task, CountDownLatch latch) {
+            this.task = task;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Marker class for the threads of this pool
+     */
+    private static final class Worker extends Thread {
+        Worker(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package in.teramatrix.utilities.util;
+
+/**
+ * A uniform grid over bounding boxes of zones to find out which zones may contain a point, without testing all of them.
+ * Extent of all the boxes is divided in cells and each zone is registered in every cell its box overlaps. To look up a point,
+ * only its cell is read, so the cost of a query depends on how many zones overlap there rather than on total number of zones.
+ * <p>
+ * Longitudes of the boxes must be in the range of [0, 360), same as {@link PreparedRegion}. A box which crosses 0 degree
+ * longitude is given with its east end less than its west end, and it is registered at both ends of the range instead of
+ * across the whole of it. Index is immutable once built and {@code query()} doesn't allocate anything, so it can be used from
+ * many threads at the same time.
+ */
+@SuppressWarnings("unused")
+public class ZoneIndex {
+    /**
+     * Maximum number of cells in each direction
+     */
+    private static final int MAX_CELLS = 512;
+
+    /**
+     * Extent of the grid
+     */
+    private final double minLat, minLng;
+
+    /**
+     * Size of a single cell in degrees
+     */
+    private final double cellHeight, cellWidth;
+
+    /**
+     * Number of cells in each direction
+     */
+    private final int rows, columns;
+
+    /**
+     * Zones of cell i are {@code cellZones[cellStart[i]]} to {@code cellZones[cellStart[i + 1] - 1]}
+     */
+    private final int[] cellStart, cellZones;
+
+    /**
+     * Highest number of zones registered in a single cell
+     */
+    private final int maxCandidates;
+
+    /**
+     * Arrays are bounding boxes of the zones, the index of a box is its zone number.
+     *
+     * @param minLats south end of each box
+     * @param maxLats north end of each box
+     * @param minLngs west end of each box, in the range of [0, 360)
+     * @param maxLngs east end of each box, in the range of [0, 360), less than the west end if the box crosses 0 degree
+     */
+    public ZoneIndex(double[] minLats, double[] maxLats, double[] minLngs, double[] maxLngs) {
+        int count = minLats.length;
+        double south = Double.MAX_VALUE, north = -Double.MAX_VALUE;
+        double west = Double.MAX_VALUE, east = -Double.MAX_VALUE;
+        double totalHeight = 0, totalWidth = 0;
+        for (int i = 0; i < count; i++) {
+            south = Math.min(south, minLats[i]);
+            north = Math.max(north, maxLats[i]);
+            totalHeight += maxLats[i] - minLats[i];
+            if (minLngs[i] <= maxLngs[i]) {
+                west = Math.min(west, minLngs[i]);
+                east = Math.max(east, maxLngs[i]);
+                totalWidth += maxLngs[i] - minLngs[i];
+            } else {
+                // box crosses 0 degree, so the grid must reach both ends of the range
+                west = 0;
+                east = Math.nextAfter(360, 0);
+                totalWidth += maxLngs[i] + 360 - minLngs[i];
+            }
+        }
+        if (count == 0) {
+            south = north = west = east = 0;
+        }
+
+        // cells are roughly the size of an average zone, so that a zone overlaps only a few cells
+        double height = Math.max(north - south, 1e-9);
+        double width = Math.max(east - west, 1e-9);
+        double zoneHeight = count > 0 ? Math.max(totalHeight / count, 1e-9) : height;
+        double zoneWidth = count > 0 ? Math.max(totalWidth / count, 1e-9) : width;
+        rows = (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(height / zoneHeight)));
+        columns = (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(width / zoneWidth)));
+        minLat = south;
+        minLng = west;
+        cellHeight = height / rows;
+        cellWidth = width / columns;
+
+        cellStart = new int[rows * columns + 1];
+        for (int i = 0; i < count; i++)
+            for (int r = row(minLats[i]), lastRow = row(maxLats[i]); r <= lastRow; r++)
+                for (int k = 0, c = column(minLngs[i]), span = span(minLngs[i], maxLngs[i]); k < span; k++, c = next(c))
+                    cellStart[r * columns + c + 1]++;
+        int max = 0;
+        for (int cell = 0; cell < rows * columns; cell++) {
+            max = Math.max(max, cellStart[cell + 1]);
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        maxCandidates = max;
+
+        cellZones = new int[cellStart[rows * columns]];
+        int[] fill = new int[rows * columns];
+        for (int i = 0; i < count; i++)
+            for (int r = row(minLats[i]), lastRow = row(maxLats[i]); r <= lastRow; r++)
+                for (int k = 0, c = column(minLngs[i]), span = span(minLngs[i], maxLngs[i]); k < span; k++, c = next(c)) {
+                    int cell = r * columns + c;
+                    cellZones[cellStart[cell] + fill[cell]++] = i;
+                }
+    }
+
+    /**
+     * Zones whose bounding box may contain the point will be copied in {@code candidates}. These are only candidates,
+     * actual geometry of each zone must still be tested.
+     *
+     * @param latitude   latitude of the point
+     * @param longitude  longitude of the point, any range
+     * @param candidates output array, must be at least {@code getMaxCandidates()} long
+     * @return number of candidates copied
+     */
+    public int query(double latitude, double longitude, int[] candidates) {
+        double lng = PreparedRegion.normalize(longitude);
+        if (latitude < minLat || latitude > minLat + rows * cellHeight
+                || lng < minLng || lng > minLng + columns * cellWidth)
+            return 0;
+
+        int cell = row(latitude) * columns + column(lng);
+        int start = cellStart[cell];
+        int count = cellStart[cell + 1] - start;
+        System.arraycopy(cellZones, start, candidates, 0, count);
+        return count;
+    }
+
+    /**
+     * @return minimum length of the array to be passed in {@code query()}
+     */
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    private int row(double latitude) {
+        int r = (int) ((latitude - minLat) / cellHeight);
+        return r < 0 ? 0 : r >= rows ? rows - 1 : r;
+    }
+
+    private int column(double longitude) {
+        int c = (int) ((longitude - minLng) / cellWidth);
+        return c < 0 ? 0 : c >= columns ? columns - 1 : c;
+    }
+
+    /**
+     * @return number of columns a box overlaps, going east from its west end and wrapping at the end of the range
+     */
+    private int span(double minLng, double maxLng) {
+        int span = column(maxLng) - column(minLng) + 1;
+        return minLng <= maxLng ? span : Math.min(span + columns, columns);
+    }
+
+    private int next(int column) {
+        return column + 1 < columns ? column + 1 : 0;
+    }
+}